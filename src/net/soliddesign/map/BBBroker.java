@@ -1,61 +1,76 @@
 package net.soliddesign.map;
 
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Optional;
 
-public interface BBBroker<T> {
+/**
+ * Converts values to and from ByteBuffers. Each call allocates a buffer or
+ * an Optional, so brokers that can should extend BBCodec.Broker, whose codec
+ * methods do not.
+ */
+public interface BBBroker<T> extends BBCodec<T> {
 
-	static final public BBBroker<Integer> intBroker = new BBBroker<Integer>() {
+	/** intBroker, with methods that do not box */
+	static final public BBCodec.Ints ints = new BBCodec.Ints();
+
+	/** longBroker, with methods that do not box */
+	static final public BBCodec.Longs longs = new BBCodec.Longs();
+
+	static final public BBBroker<Integer> intBroker = ints;
+
+	static final public BBBroker<Long> longBroker = longs;
+
+	/** length prefixed UTF-16, with a byte order mark unless empty */
+	static final public BBBroker<String> stringBroker = new BBCodec.Broker<String>() {
+		private static final char BOM = '\uFEFF';
 
 		@Override
-		public Optional<Integer> fromBB(ByteBuffer bb) {
-			if (bb.remaining() >= Integer.BYTES) {
-				return Optional.of(bb.getInt());
-			} else {
-				return Optional.empty();
+		public String decode(ByteBuffer b) {
+			int len = b.getInt();
+			int start = b.position();
+			b.position(start + len);
+			if (len % 2 != 0 || len > 0 && b.getChar(start) != BOM) {
+				// not as encodeInto() writes it
+				ByteBuffer b2 = (ByteBuffer) b.duplicate().position(start).limit(start + len);
+				return StandardCharsets.UTF_16.decode(b2).toString();
+			}
+			char[] chars = new char[Math.max(0, len / 2 - 1)];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = b.getChar(start + 2 * (i + 1));
 			}
+			return new String(chars);
 		}
 
 		@Override
-		public ByteBuffer toBB(Integer v) {
-			return (ByteBuffer) ByteBuffer.allocate(Integer.BYTES).putInt(v).flip();
+		public int encodedSize(String s) {
+			return Integer.BYTES + (s.isEmpty() ? 0 : 2 * (s.length() + 1));
 		}
-	};
-	static final public BBBroker<Long> longBroker = new BBBroker<Long>() {
 
 		@Override
-		public Optional<Long> fromBB(ByteBuffer bb) {
-			if (bb.remaining() >= Long.BYTES) {
-				return Optional.of(bb.getLong());
-			} else {
-				return Optional.empty();
+		public void encodeInto(String s, ByteBuffer bb) {
+			bb.putInt(encodedSize(s) - Integer.BYTES);
+			if (!s.isEmpty()) {
+				bb.putChar(BOM);
+			}
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (Character.isHighSurrogate(c) && i + 1 < s.length()
+						&& Character.isLowSurrogate(s.charAt(i + 1))) {
+					bb.putChar(c).putChar(s.charAt(++i));
+				} else {
+					// as the UTF-16 charset replaces unpaired surrogates
+					bb.putChar(Character.isSurrogate(c) ? '\uFFFD' : c);
+				}
 			}
-		}
-
-		@Override
-		public ByteBuffer toBB(Long v) {
-			return (ByteBuffer) ByteBuffer.allocate(Long.BYTES).putLong(v).flip();
 		}
 	};
 
-	static final public BBBroker<String> stringBroker = new BBBroker<String>() {
-
-		@Override
-		public Optional<String> fromBB(ByteBuffer b) {
-			int len = b.getInt();
-			ByteBuffer b2 = (ByteBuffer) b.slice().limit(len);
-			b.position(b.position() + len);
-			return Optional.of(Charset.forName("UTF-16").decode(b2).toString());
-		}
+	/** length prefixed UTF-8 */
+	static final public Utf8Broker utf8Broker = new Utf8Broker(false);
 
-		@Override
-		public ByteBuffer toBB(String s) {
-			ByteBuffer ebuf = Charset.forName("UTF-16").encode(s);
-			return (ByteBuffer) ByteBuffer.allocate(ebuf.limit() + Integer.BYTES).putInt(ebuf.limit())
-					.put(ebuf).flip();
-		}
-	};
+	/** UTF-8 that sorts as its strings do. See Utf8Broker. */
+	static final public Utf8Broker orderedUtf8Broker = new Utf8Broker(true);
 
 	public static ByteBuffer toBB(ByteBuffer... buffers) {
 		int size = 0;
@@ -70,6 +85,22 @@ public interface BBBroker<T> {
 		return res;
 	}
 
+	@Override
+	default T decode(ByteBuffer bb) {
+		return fromBB(bb).orElse(null);
+	}
+
+	/** encodes with toBB(), so encodeInto() should be overridden too */
+	@Override
+	default int encodedSize(T v) {
+		return toBB(v).remaining();
+	}
+
+	@Override
+	default void encodeInto(T v, ByteBuffer bb) {
+		bb.put(toBB(v));
+	}
+
 	public Optional<T> fromBB(ByteBuffer bb);
 
 	public ByteBuffer toBB(T v);
@@ -1,11 +1,168 @@
 package net.soliddesign.map;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.google.gson.Gson;
+
 public class BBBrokerTest {
+	public static class Animal {
+		public String name;
+
+		public int legs;
+
+		public List<String> tags = new ArrayList<>();
+
+		Animal(String name, int legs) {
+			this.name = name;
+			this.legs = legs;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Animal && new Gson().toJson(this).equals(new Gson().toJson(o));
+		}
+
+		@Override
+		public int hashCode() {
+			return name.hashCode();
+		}
+	}
+
+	private static List<Animal> animals(int count) {
+		List<Animal> animals = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			Animal a = new Animal(i % 3 == 0 ? null : "cow \u00e9\u20ac\ud83d\ude00 <" + i + ">", i % 5);
+			for (int j = 0; j < i % 4; j++) {
+				a.tags.add("tag" + j);
+			}
+			animals.add(a);
+		}
+		return animals;
+	}
+
+	@Test
+	public void testGson() throws Exception {
+		GsonBroker<Animal> utf16 = new GsonBroker<>(Animal.class);
+		GsonBroker<Animal> utf8 = new GsonBroker<>(Animal.class, true);
+		for (Animal a : animals(100)) {
+			// as GsonBroker stored it before it streamed
+			String json = new Gson().toJson(a);
+			ByteBuffer before = (ByteBuffer) ByteBuffer.allocate(json.length() * 2 + Integer.BYTES)
+					.putInt(json.length() * 2)
+					.put((ByteBuffer) Charset.forName("UTF-16").encode(json).position(2))
+					.flip();
+			Assert.assertEquals(before, utf16.toBB(a));
+			Assert.assertEquals(a, utf16.decode(before));
+
+			ByteBuffer bb = ByteBuffer.allocate(utf8.encodedSize(a) + 1);
+			utf8.encodeInto(a, bb);
+			Assert.assertEquals(1, bb.remaining());
+			bb.flip();
+			Assert.assertEquals(json.getBytes(StandardCharsets.UTF_8).length, bb.getInt(0));
+			Assert.assertEquals(a, utf8.decode(bb));
+			Assert.assertFalse(bb.hasRemaining());
+		}
+		// big enough to grow the buffer it is written in
+		Animal big = new Animal("big", 4);
+		for (int i = 0; i < 1000; i++) {
+			big.tags.add("\ud83d\ude00" + i);
+		}
+		Assert.assertEquals(big, utf8.decode(utf8.toBB(big)));
+		Assert.assertEquals(big, utf16.decode(utf16.toBB(big)));
+
+		// changed after it was sized: what was sized is written, once
+		Animal changed = new Animal("changed", 1);
+		int size = utf8.encodedSize(changed);
+		changed.tags.add("new");
+		ByteBuffer bb = ByteBuffer.allocate(1024);
+		utf8.encodeInto(changed, bb);
+		Assert.assertEquals(size, bb.position());
+		Assert.assertEquals(new Animal("changed", 1), utf8.decode((ByteBuffer) bb.flip()));
+		utf8.encodeInto(changed, (ByteBuffer) bb.clear());
+		Assert.assertEquals(changed, utf8.decode((ByteBuffer) bb.flip()));
+	}
+
+	/** values written one after another read back as the old format did */
+	@Test
+	public void testGsonFormat() throws Exception {
+		List<Animal> animals = animals(1000);
+		Gson gson = new Gson();
+		Charset utf16 = Charset.forName("UTF-16");
+		GsonBroker<Animal> broker = new GsonBroker<>(Animal.class);
+		GsonBroker<Animal> utf8 = new GsonBroker<>(Animal.class, true);
+		ByteBuffer strings = ByteBuffer.allocate(1 << 20);
+		ByteBuffer utf8Strings = ByteBuffer.allocate(1 << 20);
+		ByteBuffer streamed = ByteBuffer.allocate(1 << 20);
+		ByteBuffer utf8Streamed = ByteBuffer.allocate(1 << 20);
+		for (Animal a : animals) {
+			// as GsonBroker stored it before it streamed
+			String s = gson.toJson(a);
+			strings.putInt(s.length() * 2).put((ByteBuffer) utf16.encode(s).position(2));
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			utf8Strings.putInt(b.length).put(b);
+			int at = streamed.position();
+			broker.encodeInto(a, streamed);
+			Assert.assertEquals(broker.encodedSize(a), streamed.position() - at);
+			utf8.encodedSize(a);
+			utf8.encodeInto(a, utf8Streamed);
+		}
+		strings.flip();
+		utf8Strings.flip();
+		streamed.flip();
+		utf8Streamed.flip();
+		Assert.assertEquals(strings, streamed);
+		Assert.assertEquals(utf8Strings, utf8Streamed);
+		for (Animal a : animals) {
+			Assert.assertEquals(a, broker.decode(strings));
+			Assert.assertEquals(a, utf8.decode(utf8Streamed));
+		}
+		Assert.assertFalse(strings.hasRemaining());
+		Assert.assertFalse(utf8Streamed.hasRemaining());
+	}
+
+	@Test
+	public void testCodec() throws Exception {
+		ByteBuffer bb = ByteBuffer.allocate(1024);
+		BBBroker.longs.encodeLong(-5, bb);
+		BBBroker.ints.encodeInt(7, bb);
+		MagicBroker<String> mb = new MagicBroker<>("MAGIC", BBBroker.stringBroker);
+		mb.encodeInto("red", bb);
+		Assert.assertEquals(Long.BYTES + Integer.BYTES + mb.encodedSize("red"), bb.position());
+		bb.flip();
+		Assert.assertEquals(-5, BBBroker.longs.decodeLong(bb));
+		Assert.assertEquals(7, BBBroker.ints.decodeInt(bb));
+		Assert.assertEquals("red", mb.decode(bb));
+		Assert.assertNull(BBBroker.longBroker.decode(bb));
+		Assert.assertNull(new MagicBroker<>("OTHER", BBBroker.stringBroker).decode(mb.toBB("red")));
+		// as compiled clients link to them
+		Assert.assertEquals(BBBroker.class, BBBroker.class.getField("intBroker").getType());
+		Assert.assertEquals(BBBroker.class, BBBroker.class.getField("longBroker").getType());
+	}
+
+	/** encoded as the UTF-16 charset encodes, so files written before still read */
+	@Test
+	public void testStringCharset() throws Exception {
+		for (String s : new String[] { "", "red", "\ud83d\ude00", "a\ud800b", "\udc00" }) {
+			ByteBuffer encoded = Charset.forName("UTF-16").encode(s);
+			ByteBuffer bb = BBBroker.stringBroker.toBB(s);
+			Assert.assertEquals(encoded.remaining(), bb.getInt());
+			Assert.assertEquals(encoded, bb.slice());
+			bb.rewind();
+			Assert.assertEquals(Charset.forName("UTF-16").decode(encoded.duplicate()).toString(),
+					BBBroker.stringBroker.decode(bb));
+			Assert.assertFalse(bb.hasRemaining());
+		}
+	}
+
 	@Test
 	public void testDoubleMagic() throws Exception {
 		ByteBuffer bb = ByteBuffer.allocate(1024);
@@ -43,4 +200,70 @@ public class BBBrokerTest {
 		Assert.assertEquals("blue", BBBroker.stringBroker.fromBB(bb).get());
 		Assert.assertEquals("green", BBBroker.stringBroker.fromBB(bb).get());
 	}
+
+	@Test
+	public void testUtf8() throws Exception {
+		for (String s : new String[] { "", "red", "caf\u00e9", "\u20ac", "\ud83d\ude00", "a\u0000b" }) {
+			ByteBuffer bb = BBBroker.utf8Broker.toBB(s);
+			Assert.assertEquals(BBBroker.utf8Broker.encodedSize(s), bb.remaining());
+			byte[] expected = s.getBytes(StandardCharsets.UTF_8);
+			Assert.assertEquals(expected.length, bb.getInt());
+			Assert.assertEquals(ByteBuffer.wrap(expected), bb.slice());
+			bb.rewind();
+			Assert.assertEquals(s, BBBroker.utf8Broker.decode(bb));
+			Assert.assertFalse(bb.hasRemaining());
+		}
+		// unpaired surrogates, as String.getBytes() writes them
+		Assert.assertEquals("a?", BBBroker.utf8Broker.decode(BBBroker.utf8Broker.toBB("a\ud800")));
+	}
+
+	@Test
+	public void testOrderedUtf8() throws Exception {
+		Random rand = new Random(3);
+		char[] alphabet = { 0, 1, 'a', 'b', 0x7f, 0x80, 0x7ff, 0x800, 0xd800, 0xdc00, 0xe000, 0xffff };
+		List<String> strings = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			char[] chars = new char[rand.nextInt(5)];
+			for (int j = 0; j < chars.length; j++) {
+				chars[j] = alphabet[rand.nextInt(alphabet.length)];
+			}
+			strings.add(new String(chars));
+		}
+		strings.add("\ud83d\ude00");
+		List<ByteBuffer> encoded = new ArrayList<>();
+		for (String s : strings) {
+			ByteBuffer bb = ByteBuffer.allocate(BBBroker.orderedUtf8Broker.encodedSize(s) + Long.BYTES);
+			BBBroker.orderedUtf8Broker.encodeInto(s, bb);
+			bb.putLong(42).flip();
+			encoded.add(bb);
+			// a field after it is found where it ends
+			Assert.assertEquals(s, BBBroker.orderedUtf8Broker.decode(bb));
+			Assert.assertEquals(42, bb.getLong());
+			bb.rewind();
+		}
+		for (int i = 0; i < strings.size(); i++) {
+			for (int j = 0; j < 20; j++) {
+				int k = rand.nextInt(strings.size());
+				Assert.assertEquals(strings.get(i) + " " + strings.get(k),
+						Integer.signum(strings.get(i).compareTo(strings.get(k))),
+						Integer.signum(compareUnsigned(encoded.get(i), encoded.get(k))));
+			}
+		}
+		List<String> sorted = new ArrayList<>(strings);
+		Collections.sort(sorted);
+		encoded.sort(BBBrokerTest::compareUnsigned);
+		for (int i = 0; i < sorted.size(); i++) {
+			Assert.assertEquals(sorted.get(i), BBBroker.orderedUtf8Broker.decode(encoded.get(i).duplicate()));
+		}
+	}
+
+	private static int compareUnsigned(ByteBuffer a, ByteBuffer b) {
+		for (int i = 0; i < Math.min(a.limit(), b.limit()); i++) {
+			int c = Integer.compare(a.get(i) & 0xFF, b.get(i) & 0xFF);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return Integer.compare(a.limit(), b.limit());
+	}
 }
@@ -1,117 +1,612 @@
 package net.soliddesign.map;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.FileLock;
 import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
- * FIXME remove relative addressing, so that concurrent access is possible.
+ * Large file backed buffer. Reads and writes addressed by absolute offset
+ * never touch shared state, so any number of threads may read concurrently.
+ * The relative (position based) methods are a convenience for single threaded
+ * use.
  *
  * @author joe
  *
  */
-public class BBBuffer implements AutoCloseable {
+public class BBBuffer implements Storage {
 	public static BBBuffer create(File fileName) throws IOException {
 		return new BBBuffer(fileName);
 	}
 
+	/**
+	 * Open the file read only, while a writer in another process may be
+	 * changing it.
+	 */
+	public static BBBuffer readOnly(File fileName) throws IOException {
+		return new BBBuffer(fileName, true);
+	}
+
+	/** offsets in the lock file of the writer's lock and the readers' locks */
+	private static final long WRITER = 0;
+
+	private static final long READERS = 1;
+
+	/**
+	 * A file open in this process, and the locks it holds on it. The locks
+	 * are on a file beside it, since closing any channel to a file may
+	 * release every lock the process holds on that file:
+	 *
+	 * <pre>
+	 * WRITER: held exclusive by the process that writes the file
+	 * READERS: held shared by each process that reads it read only
+	 * </pre>
+	 */
+	private static class Open {
+		final File lockName;
+
+		final RandomAccessFile lockFile;
+
+		/** number of open buffers, and of those read only */
+		int buffers;
+
+		volatile int readers;
+
+		FileLock writer;
+
+		FileLock reader;
+
+		/** held by storage that cannot share the file, even in this process */
+		boolean alone;
+
+		Open(File fileName) throws IOException {
+			lockName = new File(fileName.getPath() + ".lock");
+			lockFile = new RandomAccessFile(lockName, "rw");
+		}
+
+		/** @return false if the lock file was deleted before it was locked */
+		boolean lock(boolean readOnly) throws IOException {
+			if (readOnly) {
+				if (reader == null) {
+					// waits only while a writer looks for readers
+					reader = lockFile.getChannel().lock(READERS, 1, true);
+				}
+			} else if (writer == null) {
+				writer = lockFile.getChannel().tryLock(WRITER, 1, false);
+				if (writer == null) {
+					throw new IllegalStateException("Open for writing in another process:" + lockName);
+				}
+			}
+			return lockName.exists();
+		}
+
+		/** Release the locks, and delete the lock file if no other process holds one. */
+		void close() throws IOException {
+			if (writer != null) {
+				writer.release();
+			}
+			if (reader != null) {
+				reader.release();
+			}
+			FileLock all = lockFile.getChannel().tryLock(WRITER, 2, false);
+			if (all != null) {
+				lockName.delete();
+			}
+			lockFile.close();
+		}
+	}
+
+	/**
+	 * how long hasReaders() trusts what it last saw of the readers' lock. A
+	 * read only buffer waits as long after locking, before its map reads
+	 * any pointer, so that a writer cannot miss it.
+	 */
+	private static final long PROBE_MILLIS = 10;
+
+	/** files open in this process */
+	private static final Map<String, Open> OPEN = new HashMap<>();
+
+	/** extends files before their writers reach the end */
+	private static final ExecutorService GROWER = Executors.newSingleThreadExecutor(daemon("BBBuffer grower"));
+
+	/**
+	 * Take the writer's lock of a file for storage that keeps its own copy of
+	 * the file, so that no buffer or storage in any process opens it too.
+	 *
+	 * @return releases the lock
+	 */
+	static Closeable lockAlone(File fileName) throws IOException {
+		String path = fileName.getCanonicalPath();
+		synchronized (OPEN) {
+			if (OPEN.containsKey(path)) {
+				throw new IllegalStateException("Open by another storage:" + path);
+			}
+			Open open = null;
+			while (open == null) {
+				open = new Open(new File(path));
+				try {
+					if (!open.lock(false)) {
+						open.close();
+						open = null;
+					}
+				} catch (IOException | RuntimeException e) {
+					open.close();
+					throw e;
+				}
+			}
+			open.alone = true;
+			OPEN.put(path, open);
+			Open locked = open;
+			return () -> {
+				synchronized (OPEN) {
+					OPEN.remove(path);
+					locked.close();
+				}
+			};
+		}
+	}
+
+	static ThreadFactory daemon(String name) {
+		return r -> {
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/** size of each mapped window */
+	private static final int WINDOW_BITS = 30;
+
+	private static final long WINDOW = 1L << WINDOW_BITS;
+
+	private static final long WINDOW_MASK = WINDOW - 1;
+
 	/** length of file */
-	private long fileLength;
+	private volatile long fileLength;
 
 	/** underlying file or something */
 	final private RandomAccessFile file;
 
+	/** canonical path of file */
+	final private String path;
+
+	final private boolean readOnly;
+
+	private volatile Growth growth = Growth.POWER_OF_TWO;
+
+	/** writes past this extend the file in the background */
+	private volatile long growAt = Long.MAX_VALUE;
+
+	/** true while the file is being extended in the background */
+	private final AtomicBoolean growing = new AtomicBoolean();
+
+	/** guarded by file */
+	private boolean closed;
+
+	/** release the mappings on close */
+	private volatile boolean unmap;
+
 	/**
-	 * Each map is 2G, overlapping mapped at every 1G, so the largest object can
-	 * be 1G
+	 * Each map is 1G. Copy on write so that readers never lock.
 	 */
-	private ArrayList<MappedByteBuffer> buffers = new ArrayList<>();
+	private volatile MappedByteBuffer[] buffers = new MappedByteBuffer[0];
+
+	/** windows resize() dropped, to release on close. Guarded by file. */
+	private final List<MappedByteBuffer> dropped = new ArrayList<>();
 
 	/** position within file */
 	protected long position;
 
 	/** length of data, not length of file */
-	protected long length;
+	private final AtomicLong length = new AtomicLong();
+
+	/** bit n set if window n was written since it was last forced. Bit 63 for all the rest. */
+	private final AtomicLong dirty = new AtomicLong();
+
+	/** forces the file in the background, or null */
+	private ScheduledExecutorService flusher;
+
+	private ScheduledFuture<?> flushing;
+
+	/** this file in OPEN */
+	private final Open open;
+
+	/** when the readers' lock was last probed, and whether it was held */
+	private volatile long probedAt;
+
+	private volatile boolean probedReaders;
+
+	private volatile boolean probed;
 
 	public BBBuffer(File fileName) throws IOException {
+		this(fileName, false);
+	}
+
+	/**
+	 * @param readOnly
+	 *            map the file read only, so that any number of processes may
+	 *            read it while one process writes it. A second process that
+	 *            opens it to write fails.
+	 */
+	public BBBuffer(File fileName, boolean readOnly) throws IOException {
 		super();
-		file = new RandomAccessFile(fileName, "rw");
+		this.readOnly = readOnly;
+		file = new RandomAccessFile(fileName, readOnly ? "r" : "rw");
 		fileLength = file.length();
+		path = fileName.getCanonicalPath();
+		Open open;
+		try {
+			synchronized (OPEN) {
+				open = OPEN.get(path);
+				if (open != null && open.alone) {
+					throw new IllegalStateException("Open by another storage:" + path);
+				}
+				while (open == null) {
+					open = new Open(new File(path));
+					try {
+						if (!open.lock(readOnly)) {
+							// deleted by a process closing it. Lock the new one.
+							open.close();
+							open = null;
+						}
+					} catch (IOException | RuntimeException e) {
+						open.close();
+						throw e;
+					}
+				}
+				open.lock(readOnly);
+				OPEN.put(path, open);
+				open.buffers++;
+				if (readOnly) {
+					open.readers++;
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			file.close();
+			throw e;
+		}
+		this.open = open;
+		if (readOnly) {
+			try {
+				Thread.sleep(PROBE_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Atomically reserve size bytes at the end of data.
+	 *
+	 * @return offset of the reserved bytes
+	 */
+	@Override
+	public long allocate(long size) {
+		return length.getAndAdd(size);
+	}
+
+	/**
+	 * Close, and cut the file to length if no other buffer in this process
+	 * has it open. The file is still mapped, so on systems that do not allow
+	 * that it keeps its length.
+	 *
+	 * @param length
+	 *            -1 to leave the length of the file
+	 */
+	@Override
+	public void close(long length) throws IOException {
+		flushEvery(0);
+		force();
+		synchronized (file) {
+			closed = true;
+			boolean last;
+			synchronized (OPEN) {
+				Open open = OPEN.get(path);
+				last = --open.buffers == 0;
+				if (readOnly && --open.readers == 0 && open.reader != null) {
+					open.reader.release();
+					open.reader = null;
+				}
+				if (last) {
+					OPEN.remove(path);
+					open.close();
+				}
+			}
+			if (unmap) {
+				MappedByteBuffer[] bufs = buffers;
+				buffers = new MappedByteBuffer[0];
+				for (MappedByteBuffer bb : bufs) {
+					if (bb != null) {
+						unmap(bb);
+					}
+				}
+				for (MappedByteBuffer bb : dropped) {
+					unmap(bb);
+				}
+			}
+			dropped.clear();
+			if (last && !readOnly && length >= 0 && length < fileLength) {
+				try {
+					file.setLength(length);
+				} catch (IOException e) {
+					// still mapped
+				}
+			}
+			file.close();
+		}
+	}
+
+	/**
+	 * Release the mappings of the file when it is closed, instead of when
+	 * they are garbage collected. Windows dropped when the file grows are
+	 * kept until then too, since readers may still be using them. Buffers
+	 * returned before then must not be used after close(), since reading
+	 * unmapped memory crashes the JVM.
+	 */
+	@Override
+	public void unmapOnClose(boolean unmap) {
+		this.unmap = unmap;
+	}
+
+	/**
+	 * unmap or free the direct buffer b now if the JVM allows it. Otherwise
+	 * it is left to the garbage collector.
+	 */
+	static void unmap(ByteBuffer b) {
+		try {
+			// Java 9 and later
+			Class<?> unsafe = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafe.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafe.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), b);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			try {
+				// Java 8
+				Method cleaner = b.getClass().getMethod("cleaner");
+				cleaner.setAccessible(true);
+				Object c = cleaner.invoke(b);
+				if (c != null) {
+					c.getClass().getMethod("clean").invoke(c);
+				}
+			} catch (ReflectiveOperationException | RuntimeException e8) {
+				// left to the garbage collector
+			}
+		}
+	}
+
+	/** Set how the file is extended. Takes effect the next time it is. */
+	@Override
+	public void growth(Growth growth) {
+		this.growth = growth;
+	}
+
+	/**
+	 * @return true if a read only buffer in this or another process has the
+	 *         file open. Readers in other processes are looked for by locking
+	 *         the readers' lock at most every PROBE_MILLIS.
+	 */
+	@Override
+	public boolean hasReaders() {
+		if (open.readers > 0) {
+			return true;
+		}
+		long now = System.nanoTime();
+		if (probed && now - probedAt < TimeUnit.MILLISECONDS.toNanos(PROBE_MILLIS)) {
+			return probedReaders;
+		}
+		synchronized (OPEN) {
+			if (closed || open.readers > 0) {
+				return open.readers > 0;
+			}
+			boolean readers;
+			try {
+				FileLock lock = open.lockFile.getChannel().tryLock(READERS, 1, false);
+				readers = lock == null;
+				if (lock != null) {
+					lock.release();
+				}
+			} catch (IOException e) {
+				readers = true;
+			}
+			probedReaders = readers;
+			probedAt = now;
+			probed = true;
+			return readers;
+		}
+	}
+
+	@Override
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/** @return true if another buffer in this process has the file open */
+	@Override
+	public boolean isShared() {
+		synchronized (OPEN) {
+			Open open = OPEN.get(path);
+			return open != null && open.buffers > 1;
+		}
+	}
+
+	/**
+	 * Force the file from a background thread every millis. The thread is
+	 * stopped by close().
+	 *
+	 * @param millis
+	 *            0 to stop flushing
+	 */
+	@Override
+	public synchronized void flushEvery(long millis) {
+		if (flushing != null) {
+			flushing.cancel(false);
+			flushing = null;
+		}
+		if (millis > 0) {
+			if (flusher == null) {
+				flusher = Executors.newSingleThreadScheduledExecutor(daemon("BBBuffer flusher"));
+			}
+			flushing = flusher.scheduleWithFixedDelay(this::force, millis, millis, TimeUnit.MILLISECONDS);
+		} else if (flusher != null) {
+			flusher.shutdown();
+			try {
+				// a force in progress finishes before the file is closed
+				flusher.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			flusher = null;
+		}
 	}
 
+	/**
+	 * Write every change to the file. Returns once they are on disk. Only
+	 * windows written since they were last forced are forced.
+	 */
 	@Override
-	public void close() throws IOException {
-		for (MappedByteBuffer bb : buffers) {
-			bb.force();
+	public void force() {
+		long d = dirty.getAndSet(0);
+		MappedByteBuffer[] bufs = buffers;
+		for (int i = 0; i < bufs.length; i++) {
+			if ((d & bit(i)) != 0) {
+				// a window dropped by resize() is mapped again to write it
+				(bufs[i] != null ? bufs[i] : map(i)).force();
+			}
+		}
+	}
+
+	/** @return bit n set if window n was written since it was last forced */
+	long dirty() {
+		return dirty.get();
+	}
+
+	/** @return number of windows dropped by resize() that close() unmaps */
+	int dropped() {
+		synchronized (file) {
+			return dropped.size();
 		}
-		file.close();
+	}
+
+	private static long bit(int window) {
+		return 1L << Math.min(window, 63);
 	}
 
 	public ByteBuffer getBuffer() {
-		return getBuffer(getInt());
+		ByteBuffer b = getBuffer(position);
+		position += Integer.BYTES + b.remaining();
+		return b;
 	}
 
 	public ByteBuffer getBuffer(int size) {
-		ByteBuffer slice = pageBuffer(size).slice();
-		slice.limit(size);
+		ByteBuffer slice = slice(position, size);
+		position += size;
 		return slice;
 	}
 
+	/** @return the length prefixed buffer at offset */
+	@Override
+	public ByteBuffer getBuffer(long offset) {
+		return slice(offset + Integer.BYTES, getInt(offset));
+	}
+
 	public int getInt() {
-		return pageBuffer(Integer.BYTES).getInt();
+		int v = getInt(position);
+		position += Integer.BYTES;
+		return v;
+	}
+
+	@Override
+	public int getInt(long offset) {
+		if (straddles(offset, Integer.BYTES)) {
+			return slice(offset, Integer.BYTES).getInt(0);
+		}
+		return window(offset, Integer.BYTES).getInt(index(offset));
 	}
 
 	public long getLong() {
-		return pageBuffer(Long.BYTES).getLong();
+		long v = getLong(position);
+		position += Long.BYTES;
+		return v;
+	}
+
+	@Override
+	public long getLong(long offset) {
+		if (straddles(offset, Long.BYTES)) {
+			return slice(offset, Long.BYTES).getLong(0);
+		}
+		return window(offset, Long.BYTES).getLong(index(offset));
+	}
+
+	private int index(long offset) {
+		return (int) (offset & WINDOW_MASK);
 	}
 
+	@Override
 	public long length() {
-		return length;
+		return length.get();
 	}
 
-	private MappedByteBuffer pageBuffer(int size) {
-		// System.err.format("getBuffer(%x) at %x\n", size, position);
-		try {
-			if (position + size > fileLength) {
-				// FIXME why -1?
-				fileLength = (Long.highestOneBit(position + size) << 1) - 1;
-				// System.err.format("resize: %x getBuffer(%x) at %x\n",
-				// fileLength, size, position);
-				file.seek(fileLength - 1);
-				file.write(0);
-				if (!buffers.isEmpty()) {
-					buffers.get(buffers.size() - 1).force();
-					buffers.set(buffers.size() - 1, null);
-				}
-			}
-		} catch (IOException e) {
-			throw new RuntimeException("Failed to resize.", e);
-		}
-		int offset = (int) (position >> 30);
-		MappedByteBuffer buf = offset < buffers.size() ? buffers.get(offset) : null;
-		if (buf == null) {
+	/**
+	 * Set the length of data. Used when reopening a file whose data length is
+	 * not otherwise known.
+	 */
+	@Override
+	public void length(long l) {
+		length.set(l);
+	}
+
+	/**
+	 * Shorten data to length if it is still expect, that is if nothing was allocated meanwhile.
+	 *
+	 * @return true if the length was changed
+	 */
+	@Override
+	public boolean length(long expect, long length) {
+		return this.length.compareAndSet(expect, length);
+	}
+
+	private MappedByteBuffer map(int window) {
+		synchronized (file) {
+			MappedByteBuffer[] bufs = buffers;
+			if (window < bufs.length && bufs[window] != null) {
+				return bufs[window];
+			}
+			long start = (long) window << WINDOW_BITS;
+			if (start >= fileLength) {
+				throw new IndexOutOfBoundsException("Beyond end of file:" + start);
+			}
+			long bufferSize = Math.min(fileLength - start, 1L << WINDOW_BITS);
 			try {
-				int start = offset << 30;
-				long bufferSize = Math.min(fileLength - start, 0x40000000);
-				// System.err.println("BigBuffer.create:" + start + " - " +
-				// bufferSize);
-				buf = file.getChannel().map(MapMode.READ_WRITE, start, bufferSize);
-				while (buffers.size() <= offset) {
-					buffers.add(null);
-				}
-				buffers.set(offset, buf);
+				MappedByteBuffer buf = file.getChannel().map(readOnly ? MapMode.READ_ONLY : MapMode.READ_WRITE, start,
+						bufferSize);
+				bufs = Arrays.copyOf(bufs, Math.max(bufs.length, window + 1));
+				bufs[window] = buf;
+				buffers = bufs;
+				return buf;
 			} catch (IOException e) {
 				throw new RuntimeException("Failed to map file.", e);
 			}
 		}
-		buf.position(0x7FFFFFFF & (int) position);
-		position += size;
-		length = Math.max(length, position);
-		return buf;
 	}
 
 	public long position() {
@@ -123,19 +618,188 @@ public class BBBuffer implements AutoCloseable {
 	}
 
 	public void putBuffer(ByteBuffer b) {
-		pageBuffer(Integer.BYTES + b.remaining()).putInt(b.remaining()).put(b);
+		position += putBuffer(position, b);
+	}
+
+	/**
+	 * Write a length prefixed copy of b's remaining bytes at offset. b is not
+	 * modified.
+	 *
+	 * @return number of bytes written
+	 */
+	@Override
+	public int putBuffer(long offset, ByteBuffer b) {
+		int size = b.remaining();
+		putInt(offset, size);
+		put(offset + Integer.BYTES, b);
+		written(offset, offset + Integer.BYTES + size);
+		return Integer.BYTES + size;
+	}
+
+	/** encode in place, unless the bytes are in two windows */
+	@Override
+	public int putEncoded(long offset, int size, Consumer<ByteBuffer> encoder) {
+		if (straddles(offset + Integer.BYTES, size)) {
+			return Storage.super.putEncoded(offset, size, encoder);
+		}
+		putInt(offset, size);
+		encoder.accept(slice(offset + Integer.BYTES, size));
+		written(offset, offset + Integer.BYTES + size);
+		return Integer.BYTES + size;
+	}
+
+	/** copy src's remaining bytes to offset, a window at a time */
+	private void put(long offset, ByteBuffer src) {
+		src = src.duplicate();
+		while (src.hasRemaining()) {
+			int n = (int) Math.min(src.remaining(), WINDOW - index(offset));
+			ByteBuffer dest = window(offset, n).duplicate();
+			dest.position(index(offset));
+			ByteBuffer part = src.duplicate();
+			part.limit(part.position() + n);
+			dest.put(part);
+			src.position(src.position() + n);
+			offset += n;
+		}
 	}
 
 	public void putInt(int value) {
-		pageBuffer(Integer.BYTES).putInt(value);
+		putInt(position, value);
+		position += Integer.BYTES;
+	}
+
+	@Override
+	public void putInt(long offset, int value) {
+		if (straddles(offset, Integer.BYTES)) {
+			put(offset, ByteBuffer.allocate(Integer.BYTES).putInt(0, value));
+		} else {
+			window(offset, Integer.BYTES).putInt(index(offset), value);
+		}
+		written(offset, offset + Integer.BYTES);
 	}
 
 	public void putLong(long value) {
-		pageBuffer(Long.BYTES).putLong(value);
+		putLong(position, value);
+		position += Long.BYTES;
+	}
+
+	@Override
+	public void putLong(long offset, long value) {
+		if (straddles(offset, Long.BYTES)) {
+			put(offset, ByteBuffer.allocate(Long.BYTES).putLong(0, value));
+		} else {
+			window(offset, Long.BYTES).putLong(index(offset), value);
+		}
+		written(offset, offset + Long.BYTES);
+	}
+
+	/**
+	 * Extend the file to at least end bytes, or map what another buffer of
+	 * the file extended it to. A read only buffer never extends it.
+	 */
+	private void resize(long end) {
+		synchronized (file) {
+			if (end > fileLength && !closed) {
+				try {
+					long oldLength = fileLength;
+					// another buffer of the file may have extended it already
+					long newLength = file.length();
+					if (newLength < end) {
+						if (readOnly) {
+							throw new IndexOutOfBoundsException("Beyond end of file:" + end);
+						}
+						newLength = Math.max(end, growth.length(newLength, end));
+						file.seek(newLength - 1);
+						file.write(0);
+					}
+					MappedByteBuffer[] bufs = buffers.clone();
+					// the last window is too short, so remap it on next use.
+					// Its changes are in the page cache, and force() of the new
+					// window writes them.
+					for (int i = 0; i < bufs.length; i++) {
+						if (bufs[i] != null && bufs[i].capacity() < (1L << WINDOW_BITS)) {
+							if (unmap) {
+								dropped.add(bufs[i]);
+							}
+							bufs[i] = null;
+						}
+					}
+					// publish windows before length so that readers that see
+					// the new length never find a short window
+					buffers = bufs;
+					fileLength = newLength;
+					if (!readOnly) {
+						// extend again once half of this growth is used
+						growAt = newLength - (newLength - oldLength) / 2;
+					}
+				} catch (IOException e) {
+					throw new RuntimeException("Failed to resize.", e);
+				}
+			}
+		}
 	}
 
 	public void skip() {
 		position += getInt() + Integer.BYTES;
 	}
 
+	/**
+	 * @return an independent view of size bytes starting at offset. Safe to
+	 *         call from any thread. Bytes that cross from one window to the
+	 *         next are copied, so changes to them are not written.
+	 */
+	public ByteBuffer slice(long offset, int size) {
+		if (straddles(offset, size)) {
+			ByteBuffer copy = ByteBuffer.allocate(size);
+			while (copy.hasRemaining()) {
+				long at = offset + copy.position();
+				copy.put(slice(at, (int) Math.min(copy.remaining(), WINDOW - index(at))));
+			}
+			return (ByteBuffer) copy.flip();
+		}
+		ByteBuffer dup = window(offset, size).duplicate();
+		int index = index(offset);
+		dup.limit(index + size).position(index);
+		return dup.slice();
+	}
+
+	private MappedByteBuffer window(long offset, int size) {
+		if (offset + size > fileLength) {
+			resize(offset + size);
+		}
+		int window = (int) (offset >> WINDOW_BITS);
+		MappedByteBuffer[] bufs = buffers;
+		MappedByteBuffer buf = window < bufs.length ? bufs[window] : null;
+		return buf == null ? map(window) : buf;
+	}
+
+	/** @return true if size bytes at offset are in two or more windows */
+	private static boolean straddles(long offset, int size) {
+		return (offset & WINDOW_MASK) + size > WINDOW;
+	}
+
+	/** bytes from start to end were written */
+	private void written(long start, long end) {
+		if (end > length.get()) {
+			length.accumulateAndGet(end, Math::max);
+		}
+		long bits = 0;
+		for (long w = start >> WINDOW_BITS; w <= (end - 1) >> WINDOW_BITS; w++) {
+			bits |= bit((int) Math.min(63, w));
+		}
+		if ((dirty.get() & bits) != bits) {
+			dirty.getAndAccumulate(bits, (a, b) -> a | b);
+		}
+		if (end > growAt && growing.compareAndSet(false, true)) {
+			GROWER.execute(() -> {
+				try {
+					resize(fileLength + 1);
+				} catch (RuntimeException e) {
+					// the writer that reaches the end will try again
+				} finally {
+					growing.set(false);
+				}
+			});
+		}
+	}
 }
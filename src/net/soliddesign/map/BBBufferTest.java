@@ -0,0 +1,65 @@
+package net.soliddesign.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class BBBufferTest {
+	private static final long WINDOW = 1L << 30;
+
+	@Test
+	public void acrossWindows() throws Exception {
+		File f = File.createTempFile("test.", ".bbb");
+		try (BBBuffer buf = BBBuffer.create(f)) {
+			buf.unmapOnClose(true);
+			ByteBuffer b = ByteBuffer.allocate(100);
+			for (int i = 0; i < b.limit(); i++) {
+				b.put(i, (byte) i);
+			}
+			for (long offset = WINDOW - 60; offset < WINDOW + 4; offset += 3) {
+				buf.putBuffer(offset, b);
+				assertEquals(b, buf.getBuffer(offset));
+				buf.putLong(offset, offset);
+				assertEquals(offset, buf.getLong(offset));
+				buf.putInt(offset, (int) offset);
+				assertEquals((int) offset, buf.getInt(offset));
+			}
+			// both windows of a write across them are forced
+			buf.force();
+			assertEquals(0, buf.dirty());
+			buf.putBuffer(WINDOW - 60, b);
+			assertEquals(3, buf.dirty());
+			buf.force();
+			buf.putEncoded(WINDOW - 60, b.limit(), bb -> bb.put(b.duplicate()));
+			assertEquals(3, buf.dirty());
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void droppedWindows() throws Exception {
+		File f = File.createTempFile("test.", ".bbb");
+		try {
+			BBBuffer buf = BBBuffer.create(f);
+			buf.unmapOnClose(true);
+			buf.putLong(0, 1);
+			// growing the file drops the short window mapped for the first write
+			buf.putLong(1 << 20, 2);
+			assertEquals(1, buf.getLong(0));
+			assertTrue(buf.dropped() > 0);
+			buf.close();
+			assertEquals(0, buf.dropped());
+			try (BBBuffer again = BBBuffer.readOnly(f)) {
+				assertEquals(1, again.getLong(0));
+				assertEquals(2, again.getLong(1 << 20));
+			}
+		} finally {
+			f.delete();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package net.soliddesign.map;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+/**
+ * Encodes values into buffers given by the caller, and decodes them where
+ * they lie, so that neither allocates buffers or Optionals. Every BBBroker is
+ * a BBCodec, and a BBCodec.Broker is a BBBroker made from one.
+ */
+public interface BBCodec<T> {
+	/** a BBBroker made from the codec methods of its subclass */
+	abstract class Broker<T> implements BBBroker<T> {
+		@Override
+		public abstract int encodedSize(T v);
+
+		@Override
+		public abstract void encodeInto(T v, ByteBuffer bb);
+
+		@Override
+		public abstract T decode(ByteBuffer bb);
+
+		@Override
+		public Optional<T> fromBB(ByteBuffer bb) {
+			return Optional.ofNullable(decode(bb));
+		}
+
+		@Override
+		public ByteBuffer toBB(T v) {
+			ByteBuffer bb = ByteBuffer.allocate(encodedSize(v));
+			encodeInto(v, bb);
+			return (ByteBuffer) bb.flip();
+		}
+	}
+
+	/** ints, with methods that do not box them */
+	final class Ints extends Broker<Integer> {
+		Ints() {
+		}
+
+		@Override
+		public Integer decode(ByteBuffer bb) {
+			return bb.remaining() >= Integer.BYTES ? bb.getInt() : null;
+		}
+
+		public int decodeInt(ByteBuffer bb) {
+			return bb.getInt();
+		}
+
+		@Override
+		public int encodedSize(Integer v) {
+			return Integer.BYTES;
+		}
+
+		@Override
+		public void encodeInto(Integer v, ByteBuffer bb) {
+			bb.putInt(v);
+		}
+
+		public void encodeInt(int v, ByteBuffer bb) {
+			bb.putInt(v);
+		}
+	}
+
+	/** longs, with methods that do not box them */
+	final class Longs extends Broker<Long> {
+		Longs() {
+		}
+
+		@Override
+		public Long decode(ByteBuffer bb) {
+			return bb.remaining() >= Long.BYTES ? bb.getLong() : null;
+		}
+
+		public long decodeLong(ByteBuffer bb) {
+			return bb.getLong();
+		}
+
+		@Override
+		public int encodedSize(Long v) {
+			return Long.BYTES;
+		}
+
+		@Override
+		public void encodeInto(Long v, ByteBuffer bb) {
+			bb.putLong(v);
+		}
+
+		public void encodeLong(long v, ByteBuffer bb) {
+			bb.putLong(v);
+		}
+	}
+
+	/**
+	 * Read a value at bb's position, and advance past it.
+	 *
+	 * @return the value, or null if bb does not hold one
+	 */
+	T decode(ByteBuffer bb);
+
+	/** @return bytes encodeInto() writes for v */
+	int encodedSize(T v);
+
+	/** Write v at bb's position, and advance past it. */
+	void encodeInto(T v, ByteBuffer bb);
+}
@@ -1,29 +1,96 @@
 package net.soliddesign.map;
 
 import java.nio.ByteBuffer;
+import java.util.AbstractCollection;
 import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Optional;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.function.BiFunction;
 import java.util.function.Function;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
+/**
+ * Map of objects kept as ByteBuffers in another map. keySet(), values() and
+ * entrySet() are views of the map, decoded as they are iterated, and their
+ * iterators remove from the map.
+ */
 public class BufferMapAdapter<K, V> implements CloseableMap<K, V> {
 
-	private BBBroker<K> keyBroker;
-	private BBBroker<V> valueBroker;
+	/** buffers each thread encodes keys (0) and values (1) into */
+	private static final ThreadLocal<ByteBuffer[]> SCRATCH = ThreadLocal
+			.withInitial(() -> new ByteBuffer[] { ByteBuffer.allocate(256), ByteBuffer.allocate(256) });
+
+	private static final int KEY = 0;
+
+	private static final int VALUE = 1;
+
+	private BBCodec<K> keyBroker;
+	private BBCodec<V> valueBroker;
 	private Map<ByteBuffer, ByteBuffer> map;
 
-	public BufferMapAdapter(Map<ByteBuffer, ByteBuffer> map, String name, BBBroker<K> keyBroker,
-			BBBroker<V> valueBroker) {
+	/** map given to the constructor, closed by close() */
+	private Map<ByteBuffer, ByteBuffer> file;
+
+	/**
+	 * start of every key of this adapter. null if it has no name, or its
+	 * entries are in a namespace of their own.
+	 */
+	private ByteBuffer prefix;
+
+	/**
+	 * @param name
+	 *            of a map sharing map with others. A PersistentBufferMap keeps
+	 *            it in the namespace name. Entries kept with the others
+	 *            under the name, as before namespaces, are not seen until
+	 *            migrate() moves them there.
+	 */
+	public BufferMapAdapter(Map<ByteBuffer, ByteBuffer> map, String name, BBCodec<K> keyBroker,
+			BBCodec<V> valueBroker) {
 		this.map = map;
-		this.keyBroker = name == null ? keyBroker : new MagicBroker<>(name, keyBroker);
+		this.file = map;
+		if (name == null) {
+			this.keyBroker = keyBroker;
+		} else {
+			MagicBroker<K> magic = new MagicBroker<>(name, keyBroker);
+			this.keyBroker = magic;
+			prefix = magic.prefix();
+			if (map instanceof PersistentBufferMap && ((PersistentBufferMap) map).hasNamespaces()) {
+				PersistentBufferMap root = (PersistentBufferMap) map;
+				if (!root.isReadOnly() || root.namespaces().contains(name)) {
+					this.map = root.namespace(name);
+					prefix = null;
+				}
+			}
+		}
 		this.valueBroker = valueBroker;
 	}
 
+	/**
+	 * Move the entries of the map named name that map keeps with the others
+	 * into its namespace, one at a time as map is read.
+	 *
+	 * @return number of entries moved
+	 */
+	public static long migrate(PersistentBufferMap map, String name) {
+		ByteBuffer prefix = new MagicBroker<>(name, BBBroker.stringBroker).prefix();
+		PersistentBufferMap to = map.namespace(name);
+		long moved = 0;
+		for (PersistentBufferMap.Cursor i = map.iterator(); i.hasNext();) {
+			Map.Entry<ByteBuffer, ByteBuffer> e = i.next();
+			ByteBuffer k = e.getKey();
+			if (k.remaining() >= prefix.remaining()
+					&& ((ByteBuffer) k.duplicate().limit(k.position() + prefix.remaining())).equals(prefix)) {
+				to.put(k, e.getValue());
+				i.remove();
+				moved++;
+			}
+		}
+		return moved;
+	}
+
 	@Override
 	public void clear() {
 		map.clear();
@@ -31,44 +98,187 @@ public class BufferMapAdapter<K, V> implements CloseableMap<K, V> {
 
 	@Override
 	public void close() throws Exception {
-		if (map instanceof AutoCloseable) {
-			((AutoCloseable) map).close();
+		if (file instanceof AutoCloseable) {
+			((AutoCloseable) file).close();
 		}
 	}
 
 	@SuppressWarnings("unchecked")
 	@Override
 	public boolean containsKey(Object key) {
-		return map.containsKey(keyBroker.toBB((K) key));
+		return map.containsKey(encode(keyBroker, (K) key, KEY));
 	}
 
 	@SuppressWarnings("unchecked")
 	@Override
 	public boolean containsValue(Object value) {
-		ByteBuffer vb = valueBroker.toBB((V) value);
-		return entryStream().map(e -> e.getValue()).anyMatch(p -> p.equals(vb));
+		ByteBuffer vb = encode(valueBroker, (V) value, VALUE);
+		for (Iterator<ByteBuffer> i = new Entries<>((k, v) -> v); i.hasNext();) {
+			if (i.next().equals(vb)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** @return value of buffer, or null if it can not be decoded */
+	private V decode(ByteBuffer buffer) {
+		V value = valueBroker.decode((ByteBuffer) buffer.rewind());
+		if (value == null) {
+			System.err.println("unknown value?! " + buffer);
+		}
+		return value;
+	}
+
+	/** @return value of the buffer a put or remove returned */
+	private V decodeOld(ByteBuffer old) {
+		V value = valueBroker.decode((ByteBuffer) old.rewind());
+		if (value == null) {
+			throw new IllegalStateException("Key collision");
+		}
+		return value;
+	}
+
+	/** @return false if the codec methods of codec only call toBB() */
+	private static boolean encodes(BBCodec<?> codec) {
+		return !(codec instanceof BBBroker) || codec instanceof BBCodec.Broker;
+	}
+
+	/**
+	 * @return v encoded by codec into this thread's scratch buffer i, which
+	 *         is reused by the next call with i. For maps that keep the
+	 *         buffers they are given, i is -1 and a new buffer is returned.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> ByteBuffer encode(BBCodec<T> codec, T v, int i) {
+		if (!encodes(codec)) {
+			return ((BBBroker<T>) codec).toBB(v);
+		}
+		int size = codec.encodedSize(v);
+		ByteBuffer b;
+		if (i < 0) {
+			b = ByteBuffer.allocate(size);
+		} else {
+			ByteBuffer[] scratch = SCRATCH.get();
+			if (scratch[i].capacity() < size) {
+				scratch[i] = ByteBuffer.allocate(Math.max(size, 2 * scratch[i].capacity()));
+			}
+			b = (ByteBuffer) scratch[i].clear();
+		}
+		codec.encodeInto(v, b);
+		return (ByteBuffer) b.flip();
+	}
+
+	/**
+	 * Entries of map with keys of this adapter, decoded one at a time. Over
+	 * a map other than a PersistentBufferMap, remove() after hasNext() has
+	 * read ahead removes by key, which the map's own iterator may reject.
+	 */
+	private class Entries<T> implements Iterator<T> {
+		final private Iterator<Map.Entry<ByteBuffer, ByteBuffer>> buffers = map instanceof PersistentBufferMap
+				? ((PersistentBufferMap) map).iterator()
+				: map.entrySet().iterator();
+
+		/** makes T from key and value buffer, or null to skip the entry */
+		final private BiFunction<K, ByteBuffer, T> fn;
+
+		private T next;
+
+		private ByteBuffer nextKey;
+
+		private long nextSlot;
+
+		/** key buffer of the entry last returned by next(), until removed */
+		private ByteBuffer last;
+
+		private long lastSlot;
+
+		/** true if buffers has read past last */
+		private boolean ahead;
+
+		Entries(BiFunction<K, ByteBuffer, T> fn) {
+			this.fn = fn;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && buffers.hasNext()) {
+				Map.Entry<ByteBuffer, ByteBuffer> entry = buffers.next();
+				ahead = last != null;
+				K key = keyBroker.decode((ByteBuffer) entry.getKey().duplicate().rewind());
+				if (key != null) {
+					next = fn.apply(key, entry.getValue());
+					nextKey = entry.getKey();
+					if (buffers instanceof PersistentBufferMap.Cursor) {
+						nextSlot = ((PersistentBufferMap.Cursor) buffers).slot();
+					}
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			T t = next;
+			last = nextKey;
+			lastSlot = nextSlot;
+			next = null;
+			ahead = false;
+			return t;
+		}
+
+		@Override
+		public void remove() {
+			if (last == null) {
+				throw new IllegalStateException();
+			}
+			if (!ahead) {
+				buffers.remove();
+			} else if (buffers instanceof PersistentBufferMap.Cursor) {
+				if (((PersistentBufferMap.Cursor) buffers).remove(last, lastSlot)) {
+					// read again
+					next = null;
+				}
+			} else {
+				map.remove(last);
+			}
+			last = null;
+		}
 	}
 
 	@Override
 	public Set<java.util.Map.Entry<K, V>> entrySet() {
-		return entryStream().collect(Collectors.toSet());
-	}
-
-	private Stream<java.util.Map.Entry<K, V>> entryStream() {
-		return map.entrySet().stream()
-				.map(entry -> {
-					Optional<K> key = keyBroker.fromBB((ByteBuffer) entry.getKey().rewind());
-					if (key.isPresent()) {
-						Optional<V> value = valueBroker.fromBB((ByteBuffer) entry.getValue().rewind());
-						if (value.isPresent()) {
-							return new AbstractMap.SimpleEntry<>(key.get(), value.get());
-						} else {
-							System.err.println("unknown value?! " + entry.getValue());
-						}
-					}
-					return (Map.Entry<K, V>) null;
-				})
-				.filter(e -> e != null);
+		return new AbstractSet<Map.Entry<K, V>>() {
+			@Override
+			public void clear() {
+				BufferMapAdapter.this.clear();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				if (!(o instanceof Map.Entry)) {
+					return false;
+				}
+				V value = get(((Map.Entry<?, ?>) o).getKey());
+				return value != null && value.equals(((Map.Entry<?, ?>) o).getValue());
+			}
+
+			@Override
+			public Iterator<Map.Entry<K, V>> iterator() {
+				return new Entries<>((k, v) -> {
+					V value = decode(v);
+					return value == null ? null : new AbstractMap.SimpleEntry<>(k, value);
+				});
+			}
+
+			@Override
+			public int size() {
+				return BufferMapAdapter.this.size();
+			}
+		};
 	}
 
 	@Override
@@ -79,9 +289,8 @@ public class BufferMapAdapter<K, V> implements CloseableMap<K, V> {
 	@SuppressWarnings("unchecked")
 	@Override
 	public V get(Object key) {
-		return Optional.ofNullable(map.get(keyBroker.toBB((K) key)))
-				.flatMap(bb -> valueBroker.fromBB(bb))
-				.orElse(null);
+		ByteBuffer bb = map.get(encode(keyBroker, (K) key, KEY));
+		return bb == null ? null : valueBroker.decode(bb);
 	}
 
 	@Override
@@ -91,44 +300,88 @@ public class BufferMapAdapter<K, V> implements CloseableMap<K, V> {
 
 	@Override
 	public boolean isEmpty() {
-		return keySet().isEmpty();
+		if (map instanceof PersistentBufferMap) {
+			return size() == 0;
+		}
+		return !keySet().iterator().hasNext();
 	}
 
 	@Override
 	public Set<K> keySet() {
-		return map.keySet().stream()
-				.map(keyBuffer -> keyBroker.fromBB((ByteBuffer) keyBuffer.rewind()))
-				.filter(o -> o.isPresent())
-				.map(o -> o.get())
-				.collect(Collectors.toSet());
+		return new AbstractSet<K>() {
+			@Override
+			public void clear() {
+				BufferMapAdapter.this.clear();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return containsKey(o);
+			}
+
+			@Override
+			public Iterator<K> iterator() {
+				return new Entries<>((k, v) -> k);
+			}
+
+			@SuppressWarnings("unchecked")
+			@Override
+			public boolean remove(Object o) {
+				return map.remove(encode(keyBroker, (K) o, KEY)) != null;
+			}
+
+			@Override
+			public int size() {
+				return BufferMapAdapter.this.size();
+			}
+		};
 	}
 
 	@Override
 	public V put(K key, V value) {
-		ByteBuffer oldBuffer = map.put(keyBroker.toBB(key), valueBroker.toBB(value));
-		return oldBuffer == null ? null
-				: valueBroker.fromBB((ByteBuffer) oldBuffer.rewind())
-						.orElseThrow(() -> new IllegalStateException("Key collision"));
+		// a PersistentBufferMap copies what it is given
+		boolean copies = map instanceof PersistentBufferMap;
+		ByteBuffer oldBuffer = map.put(encode(keyBroker, key, copies ? KEY : -1),
+				encode(valueBroker, value, copies ? VALUE : -1));
+		return oldBuffer == null ? null : decodeOld(oldBuffer);
 	}
 
 	@Override
 	public void putAll(Map<? extends K, ? extends V> otherMap) {
 		otherMap.entrySet().stream()
-				.forEach(entry -> map.put(keyBroker.toBB(entry.getKey()), valueBroker.toBB(entry.getValue())));
+				.forEach(entry -> set(entry.getKey(), entry.getValue()));
 	}
 
 	@Override
 	public V remove(Object key) {
 		@SuppressWarnings("unchecked")
-		ByteBuffer oldBuffer = map.remove(keyBroker.toBB((K) key));
-		return oldBuffer == null ? null
-				: valueBroker.fromBB((ByteBuffer) oldBuffer.rewind())
-						.orElseThrow(() -> new IllegalStateException("Key collision"));
+		ByteBuffer oldBuffer = map.remove(encode(keyBroker, (K) key, KEY));
+		return oldBuffer == null ? null : decodeOld(oldBuffer);
+	}
+
+	/**
+	 * put() without decoding the old value. A PersistentBufferMap has value
+	 * encoded straight into its storage.
+	 */
+	public void set(K key, V value) {
+		if (map instanceof PersistentBufferMap && encodes(valueBroker)) {
+			((PersistentBufferMap) map).put(encode(keyBroker, key, KEY), value, valueBroker);
+		} else {
+			map.put(encode(keyBroker, key, -1), encode(valueBroker, value, -1));
+		}
 	}
 
 	@Override
 	public int size() {
-		return keySet().size();
+		if (map instanceof PersistentBufferMap) {
+			PersistentBufferMap m = (PersistentBufferMap) map;
+			return prefix == null ? m.size() : (int) Math.min(Integer.MAX_VALUE, m.count(prefix));
+		}
+		int size = 0;
+		for (Iterator<K> i = keySet().iterator(); i.hasNext(); i.next()) {
+			size++;
+		}
+		return size;
 	}
 
 	@Override
@@ -160,7 +413,26 @@ public class BufferMapAdapter<K, V> implements CloseableMap<K, V> {
 
 	@Override
 	public Collection<V> values() {
-		return entryStream().map(o -> o.getValue())
-				.collect(Collectors.toSet());
+		return new AbstractCollection<V>() {
+			@Override
+			public void clear() {
+				BufferMapAdapter.this.clear();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return containsValue(o);
+			}
+
+			@Override
+			public Iterator<V> iterator() {
+				return new Entries<>((k, v) -> decode(v));
+			}
+
+			@Override
+			public int size() {
+				return BufferMapAdapter.this.size();
+			}
+		};
 	}
 }
\ No newline at end of file
@@ -0,0 +1,334 @@
+package net.soliddesign.map;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Storage read and written with positional FileChannel reads and writes
+ * through a bounded cache of pages, for files too large to map or systems
+ * where mapping is unwelcome. Least recently used pages are written back when
+ * the cache is full.
+ *
+ * The cache is split into stripes by page, each with its own lock, so threads
+ * using different pages seldom wait for each other. Buffers returned are
+ * copies.
+ *
+ * The file must not be opened by more than one storage at a time, so it takes
+ * the writer's lock BBBuffer takes, and fails if the file is open elsewhere.
+ */
+public class ChannelStorage implements Storage {
+	private static final int PAGE_BITS = 16;
+
+	private static final int PAGE = 1 << PAGE_BITS;
+
+	private static final int PAGE_MASK = PAGE - 1;
+
+	private static final int STRIPES = 16;
+
+	/** default size of the page cache */
+	public static final long CACHE_BYTES = 64L << 20;
+
+	/** a page of the file, and whether it was written since it was read */
+	private static class Page {
+		final ByteBuffer bytes = ByteBuffer.allocate(PAGE);
+		boolean dirty;
+	}
+
+	/** least recently used pages whose number is the same modulo STRIPES */
+	private class Stripe extends LinkedHashMap<Long, Page> {
+		private static final long serialVersionUID = 1L;
+
+		final int capacity;
+
+		Stripe(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Page> eldest) {
+			if (size() > capacity) {
+				write(eldest.getKey(), eldest.getValue());
+				return true;
+			}
+			return false;
+		}
+
+		/** @return page p, read from the file if it is not cached */
+		Page page(long p) {
+			Page page = get(p);
+			if (page == null) {
+				page = new Page();
+				try {
+					ByteBuffer b = page.bytes.duplicate();
+					while (b.hasRemaining() && channel.read(b, (p << PAGE_BITS) + b.position()) >= 0) {
+						// beyond the end of the file is zero
+					}
+				} catch (IOException e) {
+					throw new RuntimeException("Failed to read.", e);
+				}
+				put(p, page);
+			}
+			return page;
+		}
+	}
+
+	final private FileChannel channel;
+
+	/** releases the lock of the file */
+	final private Closeable lock;
+
+	final private Stripe[] stripes = new Stripe[STRIPES];
+
+	/** length of data, not length of file */
+	private final AtomicLong length = new AtomicLong();
+
+	/** forces the file in the background, or null */
+	private ScheduledExecutorService flusher;
+
+	private ScheduledFuture<?> flushing;
+
+	public ChannelStorage(File fileName) throws IOException {
+		this(fileName, CACHE_BYTES);
+	}
+
+	/**
+	 * @param cacheBytes
+	 *            most bytes of the file to keep in memory
+	 */
+	public ChannelStorage(File fileName, long cacheBytes) throws IOException {
+		channel = FileChannel.open(fileName.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			lock = BBBuffer.lockAlone(fileName);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		int capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE, cacheBytes / PAGE / STRIPES));
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(capacity);
+		}
+	}
+
+	@Override
+	public long allocate(long size) {
+		return length.getAndAdd(size);
+	}
+
+	/**
+	 * Close, and cut the file to length.
+	 *
+	 * @param length
+	 *            -1 to leave the length of the file
+	 */
+	@Override
+	public void close(long length) throws IOException {
+		flushEvery(0);
+		force();
+		try {
+			if (length >= 0 && length < channel.size()) {
+				channel.truncate(length);
+			}
+			channel.close();
+		} finally {
+			lock.close();
+		}
+	}
+
+	/** copy between b's remaining bytes and the bytes at offset, a page at a time */
+	private void copy(long offset, ByteBuffer b, boolean write) {
+		b = b.duplicate();
+		while (b.hasRemaining()) {
+			long p = offset >>> PAGE_BITS;
+			int index = (int) (offset & PAGE_MASK);
+			int n = Math.min(b.remaining(), PAGE - index);
+			ByteBuffer part = b.duplicate();
+			part.limit(part.position() + n);
+			Stripe stripe = stripe(p);
+			synchronized (stripe) {
+				Page page = stripe.page(p);
+				ByteBuffer bytes = page.bytes.duplicate();
+				bytes.limit(index + n).position(index);
+				if (write) {
+					bytes.put(part);
+					page.dirty = true;
+				} else {
+					part.put(bytes);
+				}
+			}
+			b.position(b.position() + n);
+			offset += n;
+		}
+	}
+
+	@Override
+	public synchronized void flushEvery(long millis) {
+		if (flushing != null) {
+			flushing.cancel(false);
+			flushing = null;
+		}
+		if (millis > 0) {
+			if (flusher == null) {
+				flusher = Executors.newSingleThreadScheduledExecutor(BBBuffer.daemon("ChannelStorage flusher"));
+			}
+			flushing = flusher.scheduleWithFixedDelay(this::force, millis, millis, TimeUnit.MILLISECONDS);
+		} else if (flusher != null) {
+			flusher.shutdown();
+			try {
+				// a force in progress finishes before the file is closed
+				flusher.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			flusher = null;
+		}
+	}
+
+	/** Write dirty pages, then force the file. */
+	@Override
+	public void force() {
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				stripe.forEach(this::write);
+			}
+		}
+		try {
+			channel.force(false);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to force.", e);
+		}
+	}
+
+	@Override
+	public ByteBuffer getBuffer(long offset) {
+		ByteBuffer b = ByteBuffer.allocate(getInt(offset));
+		copy(offset + Integer.BYTES, b, false);
+		return b;
+	}
+
+	@Override
+	public int getInt(long offset) {
+		if (straddles(offset, Integer.BYTES)) {
+			ByteBuffer b = ByteBuffer.allocate(Integer.BYTES);
+			copy(offset, b, false);
+			return b.getInt(0);
+		}
+		long p = offset >>> PAGE_BITS;
+		Stripe stripe = stripe(p);
+		synchronized (stripe) {
+			return stripe.page(p).bytes.getInt((int) (offset & PAGE_MASK));
+		}
+	}
+
+	@Override
+	public long getLong(long offset) {
+		if (straddles(offset, Long.BYTES)) {
+			ByteBuffer b = ByteBuffer.allocate(Long.BYTES);
+			copy(offset, b, false);
+			return b.getLong(0);
+		}
+		long p = offset >>> PAGE_BITS;
+		Stripe stripe = stripe(p);
+		synchronized (stripe) {
+			return stripe.page(p).bytes.getLong((int) (offset & PAGE_MASK));
+		}
+	}
+
+	@Override
+	public long length() {
+		return length.get();
+	}
+
+	@Override
+	public void length(long l) {
+		length.set(l);
+	}
+
+	@Override
+	public boolean length(long expect, long length) {
+		return this.length.compareAndSet(expect, length);
+	}
+
+	@Override
+	public int putBuffer(long offset, ByteBuffer b) {
+		int size = b.remaining();
+		putInt(offset, size);
+		copy(offset + Integer.BYTES, b, true);
+		written(offset + Integer.BYTES + size);
+		return Integer.BYTES + size;
+	}
+
+	@Override
+	public void putInt(long offset, int value) {
+		if (straddles(offset, Integer.BYTES)) {
+			copy(offset, ByteBuffer.allocate(Integer.BYTES).putInt(0, value), true);
+		} else {
+			long p = offset >>> PAGE_BITS;
+			Stripe stripe = stripe(p);
+			synchronized (stripe) {
+				Page page = stripe.page(p);
+				page.bytes.putInt((int) (offset & PAGE_MASK), value);
+				page.dirty = true;
+			}
+		}
+		written(offset + Integer.BYTES);
+	}
+
+	@Override
+	public void putLong(long offset, long value) {
+		if (straddles(offset, Long.BYTES)) {
+			copy(offset, ByteBuffer.allocate(Long.BYTES).putLong(0, value), true);
+		} else {
+			long p = offset >>> PAGE_BITS;
+			Stripe stripe = stripe(p);
+			synchronized (stripe) {
+				Page page = stripe.page(p);
+				page.bytes.putLong((int) (offset & PAGE_MASK), value);
+				page.dirty = true;
+			}
+		}
+		written(offset + Long.BYTES);
+	}
+
+	private Stripe stripe(long page) {
+		return stripes[(int) (page % STRIPES)];
+	}
+
+	/** @return true if size bytes at offset are not all in one page */
+	private static boolean straddles(long offset, int size) {
+		return (offset & PAGE_MASK) + size > PAGE;
+	}
+
+	/** write page p back to the file if it is dirty. Called holding its stripe. */
+	private void write(long p, Page page) {
+		if (page.dirty) {
+			try {
+				ByteBuffer b = page.bytes.duplicate();
+				while (b.hasRemaining()) {
+					channel.write(b, (p << PAGE_BITS) + b.position());
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to write.", e);
+			}
+			page.dirty = false;
+		}
+	}
+
+	private void written(long end) {
+		if (end > length.get()) {
+			length.accumulateAndGet(end, Math::max);
+		}
+	}
+}
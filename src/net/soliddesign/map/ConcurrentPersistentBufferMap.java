@@ -0,0 +1,476 @@
+package net.soliddesign.map;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * PersistentBufferMap that may be shared by many threads. Writers lock only
+ * the stripe that covers the bucket of their key, so writers to different
+ * buckets proceed in parallel. Readers never lock.
+ *
+ * Records are written before they are linked into a chain, and links are
+ * single aligned 8 byte writes, so a reader walking a chain always sees either
+ * the old or the new record.
+ *
+ * Buckets are split by one thread at a time, holding the stripes of both the
+ * old and the new bucket. A writer that finds its key moved to another stripe
+ * while it waited for a lock tries again.
+ *
+ * Only CHAINED maps may be shared, since Robin Hood displacement moves
+ * entries that readers may be looking for.
+ *
+ * Space of replaced and removed records is not reused until every reader that
+ * might still be following a pointer to it has finished. Readers count
+ * themselves in one of two epochs, and the epoch only advances once the
+ * readers of the epoch before it are gone. Since any record may be reused
+ * once it is unlinked, values returned by this map are copies.
+ *
+ * scan() holds every stripe of every map of the file, so writers wait for
+ * it to finish. So does writing the log of a WriteBatch commit, which is
+ * short.
+ */
+public class ConcurrentPersistentBufferMap extends PersistentBufferMap
+		implements ConcurrentMap<ByteBuffer, ByteBuffer> {
+
+	private static final int DEFAULT_STRIPES = 64;
+
+	final private ReentrantLock[] locks;
+
+	/** count of links published. Updated before each link as a fence. */
+	final private AtomicLong published = new AtomicLong();
+
+	/** only one thread splits at a time */
+	final private ReentrantLock splitLock = new ReentrantLock();
+
+	final private AtomicLong epoch = new AtomicLong();
+
+	/** number of readers in even and odd epochs */
+	final private LongAdder[] readers = { new LongAdder(), new LongAdder() };
+
+	/** records waiting for their readers to finish. {epoch, record, size} */
+	final private Queue<long[]> retired = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * @param fileName
+	 * @param indexSize
+	 *            Expected size of Map. -1 to read existing map from file.
+	 * @throws IOException
+	 */
+	public ConcurrentPersistentBufferMap(File fileName, int indexSize) throws IOException {
+		this(fileName, indexSize, DEFAULT_STRIPES);
+	}
+
+	/**
+	 * @param stripes
+	 *            number of locks shared by the buckets
+	 */
+	public ConcurrentPersistentBufferMap(File fileName, int indexSize, int stripes) throws IOException {
+		super(fileName, indexSize);
+		checkEngine(fileName);
+		locks = locks(stripes);
+	}
+
+	/** Map kept in storage, such as a MemoryStorage. */
+	public ConcurrentPersistentBufferMap(Storage storage, int indexSize, int stripes) {
+		super(storage, indexSize);
+		checkEngine(storage);
+		locks = locks(stripes);
+	}
+
+	/** namespace of root. See namespace(). */
+	ConcurrentPersistentBufferMap(ConcurrentPersistentBufferMap root, long header, int indexSize) {
+		super(root, header, indexSize);
+		locks = locks(root.locks.length);
+	}
+
+	private void checkEngine(Object source) {
+		if (engine() != Engine.CHAINED) {
+			try {
+				super.close();
+			} catch (Exception e) {
+				// the engine is the problem worth reporting
+			}
+			throw new IllegalStateException("Only chained maps may be shared:" + source);
+		}
+	}
+
+	private static ReentrantLock[] locks(int stripes) {
+		ReentrantLock[] locks = new ReentrantLock[stripes];
+		for (int i = 0; i < stripes; i++) {
+			locks[i] = new ReentrantLock();
+		}
+		return locks;
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		// scan() would hold up writers
+		return stream().anyMatch(entry -> entry.getValue().equals(value));
+	}
+
+	@Override
+	public void clear() {
+		exclusive(super::clear);
+	}
+
+	@Override
+	public void close() throws Exception {
+		// no readers are left, so everything retired can be reused
+		for (long[] r = retired.poll(); r != null; r = retired.poll()) {
+			super.reuse(r[1], r[2]);
+		}
+		super.close();
+	}
+
+	@Override
+	public ByteBuffer computeIfAbsent(ByteBuffer key, Function<? super ByteBuffer, ? extends ByteBuffer> fn) {
+		ReentrantLock lock = lock(key);
+		ByteBuffer value;
+		try {
+			long link = link(key);
+			long old = pointer(link);
+			if (old >= 0) {
+				return export(value(old));
+			}
+			value = fn.apply(key);
+			if (value == null) {
+				return null;
+			}
+			pointer(link, write(key, value));
+			inserted(key);
+		} finally {
+			lock.unlock();
+		}
+		grow();
+		return value;
+	}
+
+	/** Namespaces are shared too. */
+	@Override
+	ConcurrentPersistentBufferMap newNamespace(long header, int indexSize) {
+		return new ConcurrentPersistentBufferMap(this, header, indexSize);
+	}
+
+	/** Writers wait for each batch. */
+	@Override
+	void load(Map<ByteBuffer, ByteBuffer> batch) {
+		exclusive(() -> super.load(batch));
+	}
+
+	@Override
+	long enter() {
+		while (true) {
+			long e = epoch.get();
+			LongAdder count = readers[(int) (e & 1)];
+			count.increment();
+			if (e == epoch.get()) {
+				return e;
+			}
+			// epoch advanced before we were counted
+			count.decrement();
+		}
+	}
+
+	/** run task holding every stripe */
+	@Override
+	void exclusive(Runnable task) {
+		for (ReentrantLock lock : locks) {
+			lock.lock();
+		}
+		try {
+			task.run();
+		} finally {
+			for (ReentrantLock lock : locks) {
+				lock.unlock();
+			}
+		}
+	}
+
+	@Override
+	long locked(ByteBuffer key, LongSupplier task) {
+		ReentrantLock lock = lock(key);
+		try {
+			return task.getAsLong();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	void exit(long e) {
+		readers[(int) (e & 1)].decrement();
+	}
+
+	@Override
+	ByteBuffer export(ByteBuffer b) {
+		return (ByteBuffer) ByteBuffer.allocate(b.remaining()).put(b).flip();
+	}
+
+	@Override
+	void reuse(long record, long size) {
+		retired.add(new long[] { epoch.get(), record, size });
+		reclaim();
+	}
+
+	@Override
+	void grow() {
+		if (overloaded() && splitLock.tryLock()) {
+			try {
+				if (overloaded()) {
+					// always lock in stripe order, as clear() does
+					int p = (int) (nextSplit() % locks.length);
+					int q = (int) (buckets() % locks.length);
+					ReentrantLock a = locks[Math.min(p, q)];
+					ReentrantLock b = locks[Math.max(p, q)];
+					a.lock();
+					b.lock();
+					try {
+						split();
+					} finally {
+						b.unlock();
+						a.unlock();
+					}
+				}
+			} finally {
+				splitLock.unlock();
+			}
+		}
+	}
+
+	/** @return the locked stripe for key's current bucket */
+	private ReentrantLock lock(ByteBuffer key) {
+		while (true) {
+			ReentrantLock lock = stripe(bucket(key));
+			lock.lock();
+			if (lock == stripe(bucket(key))) {
+				return lock;
+			}
+			// bucket was split while we waited
+			lock.unlock();
+		}
+	}
+
+	/** link record after the fence, so that its contents are visible first */
+	@Override
+	void pointer(long at, long record) {
+		published.incrementAndGet();
+		super.pointer(at, record);
+	}
+
+	@Override
+	public ByteBuffer put(ByteBuffer key, ByteBuffer value) {
+		ReentrantLock lock = lock(key);
+		try {
+			// written under the lock, so that scan() sees no half written records
+			long record = write(key, value);
+			long link = link(key);
+			long old = pointer(link);
+			if (old >= 0) {
+				pointer(record, pointer(old));
+			}
+			pointer(link, record);
+			if (old >= 0) {
+				return release(old);
+			}
+			inserted(key);
+		} finally {
+			lock.unlock();
+		}
+		grow();
+		return null;
+	}
+
+	@Override
+	void publish(ByteBuffer key, long record) {
+		ReentrantLock lock = lock(key);
+		try {
+			renew(record);
+			pointer(record, -1);
+			long link = link(key);
+			long old = pointer(link);
+			if (old >= 0) {
+				pointer(record, pointer(old));
+			}
+			pointer(link, record);
+			if (old >= 0) {
+				free(old);
+				return;
+			}
+			inserted(key);
+		} finally {
+			lock.unlock();
+		}
+		grow();
+	}
+
+	/** written under the lock, so that scan() sees no half written records */
+	@Override
+	long stage(ByteBuffer key, ByteBuffer value) {
+		ReentrantLock lock = lock(key);
+		try {
+			return super.stage(key, value);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	long stage(ByteBuffer key, int size, Consumer<ByteBuffer> encoder) {
+		ReentrantLock lock = lock(key);
+		try {
+			return super.stage(key, size, encoder);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public ByteBuffer putIfAbsent(ByteBuffer key, ByteBuffer value) {
+		ReentrantLock lock = lock(key);
+		try {
+			long link = link(key);
+			long old = pointer(link);
+			if (old >= 0) {
+				return export(value(old));
+			}
+			pointer(link, write(key, value));
+			inserted(key);
+		} finally {
+			lock.unlock();
+		}
+		grow();
+		return null;
+	}
+
+	/**
+	 * Advance the epoch if the readers of the epoch before the current one
+	 * are gone, then reuse records retired before the current epoch's
+	 * readers could have started.
+	 */
+	private void reclaim() {
+		long e = epoch.get();
+		if (readers[(int) ((e + 1) & 1)].sum() == 0) {
+			epoch.compareAndSet(e, e + 1);
+		}
+		long safe = epoch.get() - 1;
+		for (long[] r = retired.peek(); r != null && r[0] < safe; r = retired.peek()) {
+			if (retired.remove(r)) {
+				super.reuse(r[1], r[2]);
+			}
+		}
+	}
+
+	@Override
+	long relocate(long bucket) {
+		ReentrantLock lock = stripe(bucket);
+		lock.lock();
+		try {
+			return super.relocate(bucket);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	void retired(Map<Long, Long> skip) {
+		super.retired(skip);
+		for (long[] r : retired) {
+			skip.put(r[1], r[1] + r[2]);
+		}
+	}
+
+	/**
+	 * Writers wait until the scan is done, including writers of the other
+	 * maps of the file, whose records it steps over.
+	 */
+	@Override
+	public boolean scan(BiPredicate<ByteBuffer, ByteBuffer> action) {
+		boolean[] result = { true };
+		exclusiveFile(() -> result[0] = super.scan(action));
+		return result[0];
+	}
+
+	@Override
+	public ByteBuffer remove(Object key) {
+		ReentrantLock lock = lock((ByteBuffer) key);
+		try {
+			return super.remove(key);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(Object key, Object value) {
+		ReentrantLock lock = lock((ByteBuffer) key);
+		try {
+			long link = link((ByteBuffer) key);
+			long old = pointer(link);
+			if (old < 0 || !value(old).equals(value)) {
+				return false;
+			}
+			pointer(link, pointer(old));
+			deleted((ByteBuffer) key);
+			free(old);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public ByteBuffer replace(ByteBuffer key, ByteBuffer value) {
+		ReentrantLock lock = lock(key);
+		try {
+			long link = link(key);
+			long old = pointer(link);
+			if (old < 0) {
+				return null;
+			}
+			long record = write(key, value);
+			pointer(record, pointer(old));
+			pointer(link, record);
+			return release(old);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean replace(ByteBuffer key, ByteBuffer oldValue, ByteBuffer newValue) {
+		Objects.requireNonNull(oldValue);
+		Objects.requireNonNull(newValue);
+		ReentrantLock lock = lock(key);
+		try {
+			long link = link(key);
+			long old = pointer(link);
+			if (old < 0 || !value(old).equals(oldValue)) {
+				return false;
+			}
+			long record = write(key, newValue);
+			pointer(record, pointer(old));
+			pointer(link, record);
+			free(old);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private ReentrantLock stripe(long bucket) {
+		return locks[(int) (bucket % locks.length)];
+	}
+}
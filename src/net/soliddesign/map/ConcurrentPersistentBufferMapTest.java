@@ -0,0 +1,236 @@
+package net.soliddesign.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConcurrentPersistentBufferMapTest {
+	private static final int THREADS = 8;
+
+	private static ByteBuffer longBuffer(long l) {
+		return (ByteBuffer) ByteBuffer.allocate(Long.BYTES).putLong(l).flip();
+	}
+
+	private static void run(int threads, IntConsumerWithException task) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> results = IntStream.range(0, threads)
+					.mapToObj(t -> pool.submit(() -> {
+						task.accept(t);
+						return null;
+					}))
+					.collect(Collectors.toList());
+			for (Future<?> result : results) {
+				result.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	interface IntConsumerWithException {
+		void accept(int i) throws Exception;
+	}
+
+	@Test
+	public void computeIfAbsent() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		try (ConcurrentPersistentBufferMap map = new ConcurrentPersistentBufferMap(f, 13)) {
+			AtomicInteger calls = new AtomicInteger();
+			run(THREADS, t -> {
+				for (long i = 0; i < 1000; i++) {
+					ByteBuffer v = map.computeIfAbsent(longBuffer(i), k -> {
+						calls.incrementAndGet();
+						return longBuffer(-k.getLong(0));
+					});
+					assertEquals(-i, v.getLong(0));
+				}
+			});
+			assertEquals(1000, calls.get());
+			assertEquals(1000, map.size());
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void compactWhileWriting() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		int count = 2000;
+		try (ConcurrentPersistentBufferMap map = new ConcurrentPersistentBufferMap(f, 101)) {
+			for (long i = 0; i < count; i++) {
+				map.put(longBuffer(i), longBuffer(i));
+			}
+			run(THREADS, t -> {
+				if (t == 0) {
+					for (int n = 0; n < 5; n++) {
+						map.compact(10_000_000);
+					}
+				} else {
+					for (long n = 1; n <= 5; n++) {
+						for (long i = t; i < count; i += THREADS - 1) {
+							map.put(longBuffer(i), longBuffer(i + n));
+							assertEquals(i + n, map.get(longBuffer(i)).getLong(0));
+						}
+					}
+				}
+			});
+			map.compact(0);
+			assertEquals(count, map.size());
+			for (long i = 0; i < count; i++) {
+				assertEquals(i == 0 ? 0 : i + 5, map.get(longBuffer(i)).getLong(0));
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void groupCommit() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		try {
+			try (ConcurrentPersistentBufferMap map = new ConcurrentPersistentBufferMap(f, 101)) {
+				run(THREADS, t -> {
+					for (long n = 0; n < 50; n++) {
+						WriteBatch batch = map.batch();
+						for (long i = 0; i < 10; i++) {
+							batch.put(longBuffer(t * 1000 + n * 10 + i), longBuffer(n));
+						}
+						if (n > 0) {
+							batch.remove(longBuffer(t * 1000 + (n - 1) * 10));
+						}
+						batch.commit();
+					}
+				});
+			}
+			try (ConcurrentPersistentBufferMap map = new ConcurrentPersistentBufferMap(f, -1)) {
+				assertEquals(THREADS * (500 - 49), map.size());
+				assertEquals(longBuffer(49), map.get(longBuffer(499)));
+				Assert.assertTrue(map.verify());
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void scanWhileWriting() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		int count = 2000;
+		try (ConcurrentPersistentBufferMap map = new ConcurrentPersistentBufferMap(f, 101)) {
+			for (long i = 0; i < count; i++) {
+				map.put(longBuffer(i), longBuffer(i));
+			}
+			run(THREADS, t -> {
+				if (t == 0) {
+					for (int n = 0; n < 20; n++) {
+						AtomicInteger seen = new AtomicInteger();
+						map.scan((k, v) -> {
+							// every key is present throughout, and its value only grows
+							Assert.assertTrue(v.getLong(0) >= k.getLong(0));
+							seen.incrementAndGet();
+							return true;
+						});
+						assertEquals(count, seen.get());
+					}
+				} else {
+					for (long n = 1; n <= 5; n++) {
+						for (long i = t; i < count; i += THREADS - 1) {
+							map.put(longBuffer(i), longBuffer(i + n));
+						}
+					}
+				}
+			});
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void parallelWriters() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		int count = 5000;
+		try {
+			try (ConcurrentPersistentBufferMap map = new ConcurrentPersistentBufferMap(f, 101)) {
+				run(THREADS, t -> {
+					for (long i = t; i < count; i += THREADS) {
+						map.put(longBuffer(i), longBuffer(i));
+						map.put(longBuffer(i), longBuffer(-i));
+						// readers race with the writers of other stripes
+						assertEquals(-i, map.get(longBuffer(i)).getLong(0));
+						if (i % 10 == 0) {
+							assertEquals(-i, map.remove(longBuffer(i)).getLong(0));
+						}
+					}
+				});
+			}
+			try (ConcurrentPersistentBufferMap map = new ConcurrentPersistentBufferMap(f, -1)) {
+				assertEquals(count - count / 10, map.size());
+				for (long i = 0; i < count; i++) {
+					if (i % 10 == 0) {
+						assertNull(map.get(longBuffer(i)));
+					} else {
+						assertEquals(-i, map.get(longBuffer(i)).getLong(0));
+					}
+				}
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void putIfAbsentAndReplace() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		try (ConcurrentPersistentBufferMap map = new ConcurrentPersistentBufferMap(f, 7)) {
+			AtomicInteger winners = new AtomicInteger();
+			run(THREADS, t -> {
+				for (long i = 0; i < 500; i++) {
+					if (map.putIfAbsent(longBuffer(i), longBuffer(t)) == null) {
+						winners.incrementAndGet();
+					}
+				}
+			});
+			assertEquals(500, winners.get());
+
+			// every thread increments every counter exactly once
+			run(THREADS, t -> {
+				for (long i = 0; i < 500; i++) {
+					ByteBuffer old;
+					do {
+						old = map.get(longBuffer(i));
+					} while (!map.replace(longBuffer(i), old, longBuffer(old.getLong(0) + 100)));
+				}
+			});
+			for (long i = 0; i < 500; i++) {
+				Assert.assertTrue(map.get(longBuffer(i)).getLong(0) >= 100 * THREADS);
+			}
+
+			Assert.assertFalse(map.remove(longBuffer(1), longBuffer(-1)));
+			Assert.assertTrue(map.remove(longBuffer(1), map.get(longBuffer(1))));
+			assertNull(map.replace(longBuffer(1), longBuffer(1)));
+			assertEquals(499, map.size());
+			// null values are rejected even when the old value does not match
+			try {
+				map.replace(longBuffer(2), longBuffer(-1), null);
+				Assert.fail();
+			} catch (NullPointerException e) {
+				// expected
+			}
+		} finally {
+			f.delete();
+		}
+	}
+}
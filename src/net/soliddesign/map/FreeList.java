@@ -0,0 +1,216 @@
+package net.soliddesign.map;
+
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Size classed lists of free extents in a Storage. The list heads are kept
+ * in the file header and each free extent holds the next free extent and its
+ * own size:
+ *
+ * <pre>
+ * header: head.0 ... head.15 free-bytes
+ * extent: next size (unused)
+ * tagged extent: TAG|size next (unused)
+ * </pre>
+ *
+ * Tagged extents (version 4 files) start with their size with the top bit
+ * set, which no record starts with, so the data region can be read in file
+ * order. Space too small to list is marked the same way.
+ *
+ * Class n holds extents of at least MIN_EXTENT&lt;&lt;n bytes. The last class
+ * holds everything larger. Lists are searched first fit.
+ */
+class FreeList {
+	static final int CLASSES = 16;
+
+	/** smallest extent that can hold next and size */
+	static final int MIN_EXTENT = 2 * Long.BYTES;
+
+	/** bytes of header used */
+	static final int HEADER_BYTES = (CLASSES + 1) * Long.BYTES;
+
+	/** how far down the last class to look for a fit */
+	private static final int MAX_SEARCH = 8;
+
+	/** marks the first word of a tagged extent */
+	static final long TAG = Long.MIN_VALUE;
+
+	/** class that an extent of size bytes belongs to */
+	private static int sizeClass(long size) {
+		return Math.min(CLASSES - 1, 63 - Long.numberOfLeadingZeros(size / MIN_EXTENT));
+	}
+
+	final private Storage buf;
+
+	/** offset of head.0 in header */
+	final private long header;
+
+	final private ReentrantLock[] locks = new ReentrantLock[CLASSES];
+
+	/** true if extents are tagged */
+	final private boolean tagged;
+
+	FreeList(Storage buf, long header, boolean tagged) {
+		this.buf = buf;
+		this.header = header;
+		this.tagged = tagged;
+		for (int i = 0; i < CLASSES; i++) {
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * Take size bytes from the free lists. A class that another thread is
+	 * using is skipped, so that allocation never waits.
+	 *
+	 * @return offset of the extent, or -1 if nothing fits
+	 */
+	long allocate(long size) {
+		return allocate(size, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Take size bytes from an extent that starts before below.
+	 *
+	 * @return offset of the extent, or -1 if nothing fits
+	 */
+	long allocate(long size, long below) {
+		// extents in size's own class may be too small, so it is searched too
+		for (int c = sizeClass(Math.max(size, MIN_EXTENT)); c < CLASSES; c++) {
+			if (buf.getLong(head(c)) <= 0 || !locks[c].tryLock()) {
+				continue;
+			}
+			long extent = -1;
+			long extentSize = 0;
+			try {
+				long link = head(c);
+				for (int i = 0; i < MAX_SEARCH; i++) {
+					extent = buf.getLong(link);
+					if (extent <= 0) {
+						break;
+					}
+					extentSize = size(extent);
+					if (extentSize >= size && extent < below) {
+						buf.putLong(link, buf.getLong(next(extent)));
+						bytes(-extentSize);
+						break;
+					}
+					link = next(extent);
+					extent = -1;
+				}
+			} finally {
+				locks[c].unlock();
+			}
+			if (extent > 0) {
+				free(extent + size, extentSize - size);
+				return extent;
+			}
+		}
+		return -1;
+	}
+
+	/** @return bytes in the free lists */
+	long bytes() {
+		return buf.getLong(header + CLASSES * Long.BYTES);
+	}
+
+	private void bytes(long delta) {
+		synchronized (locks) {
+			buf.putLong(header + CLASSES * Long.BYTES, bytes() + delta);
+		}
+	}
+
+	/** @return end of the last free extent */
+	long end() {
+		long end = 0;
+		for (int c = 0; c < CLASSES; c++) {
+			for (long extent = buf.getLong(head(c)); extent > 0; extent = buf.getLong(next(extent))) {
+				end = Math.max(end, extent + size(extent));
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Add extent to the free lists. Extents under MIN_EXTENT are dropped, and
+	 * marked if tagged.
+	 */
+	void free(long extent, long size) {
+		if (size < MIN_EXTENT) {
+			if (tagged && size > 0) {
+				buf.putLong(extent, TAG | size);
+			}
+			return;
+		}
+		int c = sizeClass(size);
+		locks[c].lock();
+		try {
+			buf.putLong(tagged ? extent : extent + Long.BYTES, tagged ? TAG | size : size);
+			buf.putLong(next(extent), buf.getLong(head(c)));
+			buf.putLong(head(c), extent);
+		} finally {
+			locks[c].unlock();
+		}
+		bytes(size);
+	}
+
+	/**
+	 * Drop the free extents at the end of data, so that the space is appended
+	 * to again. Gives up if another thread appends meanwhile.
+	 *
+	 * @return bytes dropped
+	 */
+	long trim() {
+		for (ReentrantLock lock : locks) {
+			lock.lock();
+		}
+		try {
+			// start of each free extent by its end
+			TreeMap<Long, Long> extents = new TreeMap<>();
+			for (int c = 0; c < CLASSES; c++) {
+				for (long extent = buf.getLong(head(c)); extent > 0; extent = buf.getLong(next(extent))) {
+					extents.put(extent + size(extent), extent);
+				}
+			}
+			long end = buf.length();
+			long start = end;
+			while (extents.containsKey(start)) {
+				start = extents.get(start);
+			}
+			if (start == end || !buf.length(end, start)) {
+				return 0;
+			}
+			for (int c = 0; c < CLASSES; c++) {
+				long link = head(c);
+				for (long extent = buf.getLong(link); extent > 0; extent = buf.getLong(link)) {
+					if (extent >= start) {
+						buf.putLong(link, buf.getLong(next(extent)));
+					} else {
+						link = next(extent);
+					}
+				}
+			}
+			bytes(start - end);
+			return end - start;
+		} finally {
+			for (ReentrantLock lock : locks) {
+				lock.unlock();
+			}
+		}
+	}
+
+	private long head(int c) {
+		return header + Long.BYTES * c;
+	}
+
+	/** @return offset of the next field of extent */
+	private long next(long extent) {
+		return tagged ? extent + Long.BYTES : extent;
+	}
+
+	/** @return size of extent */
+	private long size(long extent) {
+		return tagged ? ~TAG & buf.getLong(extent) : buf.getLong(extent + Long.BYTES);
+	}
+}
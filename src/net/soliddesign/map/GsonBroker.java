@@ -1,36 +1,243 @@
 package net.soliddesign.map;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.Charset;
-import java.util.Optional;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Objects as length prefixed JSON. The JSON is streamed by the class's
+ * TypeAdapter straight to and from the bytes, without building a String.
+ *
+ * encodedSize() keeps the bytes it encodes for its thread, so that an
+ * encodeInto() of the same object that follows it copies them rather than
+ * encoding again. So the bytes written are the ones that were sized, even if
+ * the object changed in between.
+ */
+public class GsonBroker<T> extends BBCodec.Broker<T> {
+	final static private Gson gson = new Gson();
+
+	final static private ThreadLocal<Encoded> encoded = ThreadLocal.withInitial(() -> new Encoded());
 
-public class GsonBroker<T> implements BBBroker<T> {
-	final static private ThreadLocal<Gson> gson = ThreadLocal.withInitial(() -> new Gson());
 	final private Class<T> cls;
 
+	final private TypeAdapter<T> adapter;
+
+	final private boolean utf8;
+
 	public GsonBroker(Class<T> cls) {
+		this(cls, false);
+	}
+
+	/**
+	 * @param utf8
+	 *            true to store UTF-8, which is half the size of the UTF-16
+	 *            stored otherwise for most JSON. Neither reads the other.
+	 */
+	public GsonBroker(Class<T> cls, boolean utf8) {
 		this.cls = cls;
+		this.adapter = gson.getAdapter(cls);
+		this.utf8 = utf8;
 	}
 
 	@Override
-	public Optional<T> fromBB(ByteBuffer b) {
+	public T decode(ByteBuffer b) {
 		int len = b.getInt();
-		ByteBuffer b2 = (ByteBuffer) b.slice().limit(len);
-		b.position(b.position() + len);
-		Optional<CharBuffer> opt = Optional.of(Charset.forName("UTF-16").decode(b2));
-		return opt.map(o -> gson.get().fromJson(o.toString(), cls));
+		int end = b.position() + len;
+		try {
+			JsonReader reader = new JsonReader(new BufferReader(b, end, utf8));
+			// as Gson.fromJson() reads
+			reader.setLenient(true);
+			return adapter.read(reader);
+		} catch (IOException | IllegalStateException e) {
+			throw new JsonSyntaxException(e);
+		} finally {
+			b.position(end);
+		}
 	}
 
 	@Override
-	public ByteBuffer toBB(T v) {
-		String s = gson.get().toJson(v);
-		return (ByteBuffer) ByteBuffer.allocate(s.length() * 2 + 2 + Integer.BYTES)
-				.putInt(s.length() * 2)
-				.put((ByteBuffer) Charset.forName("UTF-16").encode(s).position(2))
-				.flip();
+	public int encodedSize(T v) {
+		Encoded e = encode(v);
+		e.value = new WeakReference<>(v);
+		return Integer.BYTES + e.bytes.position();
+	}
+
+	@Override
+	public void encodeInto(T v, ByteBuffer bb) {
+		Encoded e = encoded.get();
+		if (e.broker != this || e.value == null || e.value.get() != v || v == null) {
+			e = encode(v);
+		}
+		ByteBuffer bytes = (ByteBuffer) e.bytes.flip();
+		bb.putInt(bytes.remaining()).put(bytes);
+		e.broker = null;
+		e.value = null;
+	}
+
+	/** @return v encoded in the current thread's buffer */
+	@SuppressWarnings("unchecked")
+	private Encoded encode(T v) {
+		Encoded e = encoded.get();
+		e.start(this);
+		// as Gson.toJson(v) writes it, by its own class
+		TypeAdapter<T> a = v == null || v.getClass() == cls ? adapter
+				: (TypeAdapter<T>) gson.getAdapter(v.getClass());
+		JsonWriter writer = new JsonWriter(e);
+		writer.setLenient(true);
+		writer.setHtmlSafe(true);
+		writer.setSerializeNulls(false);
+		try {
+			a.write(writer, v);
+		} catch (IOException ex) {
+			throw new JsonIOException(ex);
+		}
+		e.finish();
+		return e;
+	}
+
+	/** JSON written into a buffer of the thread that grows as needed */
+	private static class Encoded extends Writer {
+		private ByteBuffer bytes = ByteBuffer.allocate(1024);
+
+		/** broker that wrote bytes */
+		private GsonBroker<?> broker;
+
+		/**
+		 * value bytes were sized for, until they are written. Weak, so that a
+		 * value that is only sized is not kept.
+		 */
+		private WeakReference<Object> value;
+
+		/** high surrogate waiting for its pair */
+		private char high;
+
+		@Override
+		public void close() {
+		}
+
+		/** make room for the bytes of a char */
+		private void ensure() {
+			if (bytes.remaining() < 4) {
+				ByteBuffer b = ByteBuffer.allocate(bytes.capacity() * 2);
+				bytes.flip();
+				bytes = b.put(bytes);
+			}
+		}
+
+		private void finish() {
+			if (high != 0) {
+				ensure();
+				bytes.put((byte) '?');
+				high = 0;
+			}
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		private void start(GsonBroker<?> broker) {
+			bytes.clear();
+			high = 0;
+			this.broker = broker;
+			this.value = null;
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+			for (int i = off; i < off + len; i++) {
+				write(cbuf[i]);
+			}
+		}
+
+		@Override
+		public void write(int i) {
+			char c = (char) i;
+			ensure();
+			if (!broker.utf8) {
+				bytes.putChar(c);
+			} else if (high != 0 && Character.isLowSurrogate(c)) {
+				Utf8Broker.encode(Character.toCodePoint(high, c), bytes);
+				high = 0;
+			} else {
+				finish();
+				if (Character.isHighSurrogate(c)) {
+					high = c;
+				} else {
+					// as String.getBytes() replaces a lone low surrogate
+					Utf8Broker.encode(Character.isSurrogate(c) ? '?' : c, bytes);
+				}
+			}
+		}
+
+		@Override
+		public void write(String str, int off, int len) {
+			for (int i = off; i < off + len; i++) {
+				write(str.charAt(i));
+			}
+		}
 	}
 
+	/** chars of the bytes of b up to end */
+	private static class BufferReader extends Reader {
+		/** the bytes, limited to end */
+		final private ByteBuffer b;
+
+		final private boolean utf8;
+
+		/** low surrogate of a code point whose high surrogate was read */
+		private char low;
+
+		BufferReader(ByteBuffer b, int end, boolean utf8) {
+			this.b = (ByteBuffer) b.duplicate().limit(end);
+			this.utf8 = utf8;
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) {
+			int n = 0;
+			if (low != 0 && len > 0) {
+				cbuf[off + n++] = low;
+				low = 0;
+			}
+			if (!utf8) {
+				for (; n < len && b.remaining() > 1; n++) {
+					cbuf[off + n] = b.getChar();
+				}
+			} else {
+				while (n < len && b.hasRemaining()) {
+					byte c = b.get();
+					if (c >= 0) {
+						cbuf[off + n++] = (char) c;
+					} else {
+						int cp = Utf8Broker.codePoint(c, b);
+						if (Character.isSupplementaryCodePoint(cp)) {
+							cbuf[off + n++] = Character.highSurrogate(cp);
+							if (n < len) {
+								cbuf[off + n++] = Character.lowSurrogate(cp);
+							} else {
+								low = Character.lowSurrogate(cp);
+							}
+						} else {
+							cbuf[off + n++] = (char) cp;
+						}
+					}
+				}
+			}
+			return n == 0 && len > 0 ? -1 : n;
+		}
+	}
 }
@@ -6,6 +6,17 @@ import java.util.Map;
 public class GsonMap<K, V> extends BufferMapAdapter<K, V> {
 
 	public GsonMap(Map<ByteBuffer, ByteBuffer> map, String name, Class<K> keyClass, Class<V> valueClass) {
-		super(map, name, new MagicBroker<>("GSON", new GsonBroker<>(keyClass)), new GsonBroker<>(valueClass));
+		this(map, name, keyClass, valueClass, false);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * @param utf8
+	 *            true to store the JSON as UTF-8. A map stored one way does
+	 *            not read the other.
+	 */
+	public GsonMap(Map<ByteBuffer, ByteBuffer> map, String name, Class<K> keyClass, Class<V> valueClass,
+			boolean utf8) {
+		super(map, name, new MagicBroker<>(utf8 ? "GSON8" : "GSON", new GsonBroker<>(keyClass, utf8)),
+				new GsonBroker<>(valueClass, utf8));
+	}
+}
@@ -0,0 +1,111 @@
+package net.soliddesign.map;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Hash of the keys of a PersistentBufferMap. The choice is recorded in the
+ * file, so only these built in hashes may be used.
+ */
+public enum KeyHash {
+	/**
+	 * Original hash. Samples at most SAMPLES bytes from the end of the key
+	 * with a 31 multiplier. Used by files from before the hash was recorded.
+	 */
+	SAMPLED {
+		@Override
+		public long hash(ByteBuffer key) {
+			int hash = 1;
+			// don't sample more than SAMPLES
+			int step = key.limit() > SAMPLES ? key.limit() / SAMPLES : 1;
+			for (int i = key.limit() - 1; i >= 0; i = i - step) {
+				hash = 31 * hash + key.get(i);
+			}
+			return 0x7FFFFFFF & hash;
+		}
+	},
+	/**
+	 * xxHash64 of every byte of the key, read 8 bytes at a time. Words are read
+	 * big endian, so values differ from the reference implementation.
+	 */
+	XX64 {
+		@Override
+		public long hash(ByteBuffer key) {
+			boolean swap = key.order() == ByteOrder.LITTLE_ENDIAN;
+			int i = key.position();
+			int end = key.limit();
+			long h;
+			if (end - i >= 32) {
+				long v1 = P1 + P2;
+				long v2 = P2;
+				long v3 = 0;
+				long v4 = -P1;
+				for (; end - i >= 32; i += 32) {
+					v1 = round(v1, word(key, i, swap));
+					v2 = round(v2, word(key, i + 8, swap));
+					v3 = round(v3, word(key, i + 16, swap));
+					v4 = round(v4, word(key, i + 24, swap));
+				}
+				h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12)
+						+ Long.rotateLeft(v4, 18);
+				h = merge(h, v1);
+				h = merge(h, v2);
+				h = merge(h, v3);
+				h = merge(h, v4);
+			} else {
+				h = P5;
+			}
+			h += end - key.position();
+			for (; end - i >= 8; i += 8) {
+				h = Long.rotateLeft(h ^ round(0, word(key, i, swap)), 27) * P1 + P4;
+			}
+			if (end - i >= 4) {
+				int w = key.getInt(i);
+				h = Long.rotateLeft(h ^ ((swap ? Integer.reverseBytes(w) : w) & 0xFFFFFFFFL) * P1, 23) * P2 + P3;
+				i += 4;
+			}
+			for (; i < end; i++) {
+				h = Long.rotateLeft(h ^ (key.get(i) & 0xFF) * P5, 11) * P1;
+			}
+			h ^= h >>> 33;
+			h *= P2;
+			h ^= h >>> 29;
+			h *= P3;
+			return h ^ h >>> 32;
+		}
+	};
+
+	/** hash used for new maps */
+	public static final KeyHash DEFAULT = XX64;
+
+	// maximum number of bytes to sample from key for hash value.
+	private static final int SAMPLES = 128;
+
+	private static final long P1 = 0x9E3779B185EBCA87L;
+	private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long P3 = 0x165667B19E3779F9L;
+	private static final long P4 = 0x85EBCA77C2B2AE63L;
+	private static final long P5 = 0x27D4EB2F165667C5L;
+
+	private static long merge(long h, long v) {
+		return (h ^ round(0, v)) * P1 + P4;
+	}
+
+	private static long round(long acc, long input) {
+		return Long.rotateLeft(acc + input * P2, 31) * P1;
+	}
+
+	private static long word(ByteBuffer key, int i, boolean swap) {
+		long w = key.getLong(i);
+		return swap ? Long.reverseBytes(w) : w;
+	}
+
+	/** @return hash of key. Does not change key. */
+	public abstract long hash(ByteBuffer key);
+
+	/** @return hash folded to a non negative int, as kept in records and indexes */
+	int hash31(ByteBuffer key) {
+		long h = hash(key);
+		return 0x7FFFFFFF & (int) (h ^ h >>> 32);
+	}
+}
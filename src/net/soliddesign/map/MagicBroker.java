@@ -2,37 +2,51 @@ package net.soliddesign.map;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.Optional;
 
-public class MagicBroker<T> implements BBBroker<T> {
-	final private ByteBuffer magic;
+public class MagicBroker<T> extends BBCodec.Broker<T> {
+	final private byte[] magic;
 
-	final private BBBroker<T> broker;
+	final private BBCodec<T> broker;
 
-	public MagicBroker(String magic, BBBroker<T> broker) {
+	public MagicBroker(String magic, BBCodec<T> broker) {
 		this.broker = broker;
 		// FIXME -2, -1?
-		this.magic = ((ByteBuffer) Charset.forName("UTF-16").encode(magic).position(2)).slice();
+		ByteBuffer m = ((ByteBuffer) Charset.forName("UTF-16").encode(magic).position(2)).slice();
+		this.magic = new byte[m.remaining()];
+		m.get(this.magic);
 	}
 
 	@Override
-	public Optional<T> fromBB(ByteBuffer bb) {
-		magic.rewind();
+	public T decode(ByteBuffer bb) {
+		if (bb.remaining() < Integer.BYTES) {
+			return null;
+		}
 		int length = bb.getInt();
-		if (length == magic.limit()
-				&& ((ByteBuffer) bb.slice().limit(length)).compareTo(magic) == 0) {
-			bb.position(bb.position() + length);
-			return broker.fromBB(bb);
+		if (length != magic.length || bb.remaining() < length) {
+			return null;
+		}
+		for (int i = 0; i < length; i++) {
+			if (bb.get(bb.position() + i) != magic[i]) {
+				return null;
+			}
 		}
-		return Optional.empty();
+		bb.position(bb.position() + length);
+		return broker.decode(bb);
+	}
+
+	@Override
+	public int encodedSize(T v) {
+		return Integer.BYTES + magic.length + broker.encodedSize(v);
 	}
 
 	@Override
-	public ByteBuffer toBB(T v) {
-		ByteBuffer bb = broker.toBB(v);
-		magic.rewind();
-		return (ByteBuffer) ByteBuffer.allocate(bb.limit() + magic.limit() + Integer.BYTES).putInt(magic.limit())
-				.put(magic).put(bb).flip();
+	public void encodeInto(T v, ByteBuffer bb) {
+		bb.putInt(magic.length).put(magic);
+		broker.encodeInto(v, bb);
 	}
 
+	/** @return the bytes that start every key of this broker */
+	public ByteBuffer prefix() {
+		return (ByteBuffer) ByteBuffer.allocate(magic.length + Integer.BYTES).putInt(magic.length).put(magic).flip();
+	}
 }
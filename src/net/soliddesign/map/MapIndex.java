@@ -8,7 +8,6 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Random;
 import java.util.Spliterator;
 import java.util.function.Consumer;
@@ -35,7 +34,7 @@ public class MapIndex<T, K> {
 				if (item.value.equals(k)) {
 					next = item.next;
 					items.remove(item.id);
-					items.put(id, this);
+					items.set(id, this);
 				} else {
 					item.remove(k);
 				}
@@ -149,12 +148,12 @@ public class MapIndex<T, K> {
 					if (s == null && i.hasNext()) { // initial call
 						s = i.next().get();
 					}
-					do {
+					while (s != null) {
 						if (s.tryAdvance(action)) {
 							return true;
 						}
 						s = i.hasNext() ? i.next().get() : null;
-					} while (s != null);
+					}
 					return false;
 				}
 
@@ -286,10 +285,10 @@ public class MapIndex<T, K> {
 	final private Comparator<T> comparator;
 
 	/** storage of list items in persistent buffer map */
-	final private Map<Long, ListItem> items;
+	final private BufferMapAdapter<Long, ListItem> items;
 
 	/** storage of tree nodes in persistent buffer map */
-	final private Map<Long, TreeNode> trees;
+	final private BufferMapAdapter<Long, TreeNode> trees;
 
 	/**
 	 *
@@ -304,47 +303,57 @@ public class MapIndex<T, K> {
 	 * @param valueBroker
 	 *            broker for value being indexed
 	 */
-	public MapIndex(Map<ByteBuffer, ByteBuffer> pers, String name, Comparator<T> comparator, BBBroker<K> keyBroker,
-			BBBroker<T> valueBroker) {
+	public MapIndex(Map<ByteBuffer, ByteBuffer> pers, String name, Comparator<T> comparator, BBCodec<K> keyBroker,
+			BBCodec<T> valueBroker) {
 		this.comparator = comparator;
-		this.items = new BufferMapAdapter<>(pers, name + ":items", BBBroker.longBroker, new BBBroker<ListItem>() {
+		this.items = new BufferMapAdapter<>(pers, name + ":items", BBBroker.longBroker, new BBCodec.Broker<ListItem>() {
 
 			@Override
-			public Optional<MapIndex<T, K>.ListItem> fromBB(ByteBuffer bb) {
+			public MapIndex<T, K>.ListItem decode(ByteBuffer bb) {
 				MapIndex<T, K>.ListItem item = new ListItem();
-				item.next = longBroker.fromBB(bb).get();
-				item.value = keyBroker.fromBB(bb).get();
-				item.id = longBroker.fromBB(bb).get();
-				return Optional.of(item);
+				item.next = longs.decodeLong(bb);
+				item.value = keyBroker.decode(bb);
+				item.id = longs.decodeLong(bb);
+				return item;
+			}
+
+			@Override
+			public int encodedSize(MapIndex<T, K>.ListItem v) {
+				return 2 * Long.BYTES + keyBroker.encodedSize(v.value);
 			}
 
 			@Override
-			public ByteBuffer toBB(MapIndex<T, K>.ListItem v) {
-				return BBBroker.toBB(longBroker.toBB(v.next),
-						keyBroker.toBB(v.value),
-						longBroker.toBB(v.id));
+			public void encodeInto(MapIndex<T, K>.ListItem v, ByteBuffer bb) {
+				longs.encodeLong(v.next, bb);
+				keyBroker.encodeInto(v.value, bb);
+				longs.encodeLong(v.id, bb);
 			}
 		});
-		trees = new BufferMapAdapter<>(pers, name + ":tree", BBBroker.longBroker, new BBBroker<TreeNode>() {
+		trees = new BufferMapAdapter<>(pers, name + ":tree", BBBroker.longBroker, new BBCodec.Broker<TreeNode>() {
 
 			@Override
-			public Optional<MapIndex<T, K>.TreeNode> fromBB(ByteBuffer bb) {
+			public MapIndex<T, K>.TreeNode decode(ByteBuffer bb) {
 				TreeNode tree = new TreeNode();
-				tree.id = longBroker.fromBB(bb).get();
-				tree.left = longBroker.fromBB(bb).get();
-				tree.right = longBroker.fromBB(bb).get();
-				tree.value = valueBroker.fromBB(bb).get();
-				tree.list = longBroker.fromBB(bb).get();
-				return Optional.of(tree);
+				tree.id = longs.decodeLong(bb);
+				tree.left = longs.decodeLong(bb);
+				tree.right = longs.decodeLong(bb);
+				tree.value = valueBroker.decode(bb);
+				tree.list = longs.decodeLong(bb);
+				return tree;
+			}
+
+			@Override
+			public int encodedSize(MapIndex<T, K>.TreeNode v) {
+				return 4 * Long.BYTES + valueBroker.encodedSize(v.value);
 			}
 
 			@Override
-			public ByteBuffer toBB(MapIndex<T, K>.TreeNode v) {
-				return BBBroker.toBB(longBroker.toBB(v.id),
-						longBroker.toBB(v.left),
-						longBroker.toBB(v.right),
-						valueBroker.toBB(v.value),
-						longBroker.toBB(v.list));
+			public void encodeInto(MapIndex<T, K>.TreeNode v, ByteBuffer bb) {
+				longs.encodeLong(v.id, bb);
+				longs.encodeLong(v.left, bb);
+				longs.encodeLong(v.right, bb);
+				valueBroker.encodeInto(v.value, bb);
+				longs.encodeLong(v.list, bb);
 			}
 		});
 	}
@@ -391,7 +400,7 @@ public class MapIndex<T, K> {
 		item.id = newMapId(items);
 		item.value = key;
 		item.next = next;
-		items.put(item.id, item);
+		items.set(item.id, item);
 		return item;
 	}
 
@@ -424,7 +433,7 @@ public class MapIndex<T, K> {
 	}
 
 	private void putNode(MapIndex<T, K>.TreeNode node) {
-		trees.put(node.id, node);
+		trees.set(node.id, node);
 	}
 
 	public void remove(T v, K k) {
@@ -0,0 +1,287 @@
+package net.soliddesign.map;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Storage in direct buffers outside the Java heap, for maps that need not
+ * outlive the process, and for tests. Nothing touches the file system unless
+ * the storage was loaded from or is to be saved to a file.
+ *
+ * Memory is allocated in chunks as it is written. Like BBBuffer, reads and
+ * writes addressed by absolute offset never lock, and buffers returned are
+ * views, except of bytes that cross from one chunk to the next.
+ */
+public class MemoryStorage implements Storage {
+	private static final int CHUNK_BITS = 20;
+
+	private static final long CHUNK = 1L << CHUNK_BITS;
+
+	private static final long CHUNK_MASK = CHUNK - 1;
+
+	/** Read a file, such as one saved by a MemoryStorage, into memory. */
+	public static MemoryStorage load(File fileName) throws IOException {
+		MemoryStorage storage = new MemoryStorage();
+		try (FileChannel channel = FileChannel.open(fileName.toPath(), StandardOpenOption.READ)) {
+			for (long at = 0; at < channel.size();) {
+				ByteBuffer chunk = storage.chunk(at).duplicate();
+				chunk.position(index(at));
+				if (channel.read(chunk, at) < 0) {
+					break;
+				}
+				at += chunk.position() - index(at);
+			}
+			storage.length.set(channel.size());
+		}
+		return storage;
+	}
+
+	/**
+	 * Each chunk is 1M, or null until it is written. Copy on write so that
+	 * readers never lock.
+	 */
+	private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+
+	/** length of data */
+	private final AtomicLong length = new AtomicLong();
+
+	/** file to save to on close, or null */
+	private volatile File saveTo;
+
+	/** free the memory on close */
+	private volatile boolean free;
+
+	@Override
+	public long allocate(long size) {
+		return length.getAndAdd(size);
+	}
+
+	/** @return chunk holding offset, allocated on first use */
+	private ByteBuffer chunk(long offset) {
+		ByteBuffer buf = existing(offset);
+		if (buf == null) {
+			int chunk = (int) (offset >> CHUNK_BITS);
+			synchronized (this) {
+				ByteBuffer[] c = chunks;
+				if (chunk >= c.length) {
+					c = Arrays.copyOf(c, Math.max(chunk + 1, c.length * 2));
+				}
+				if (c[chunk] == null) {
+					c = c.clone();
+					c[chunk] = ByteBuffer.allocateDirect((int) CHUNK);
+					chunks = c;
+				}
+				buf = c[chunk];
+			}
+		}
+		return buf;
+	}
+
+	/** @return chunk holding offset, or null if nothing was written to it */
+	private ByteBuffer existing(long offset) {
+		int chunk = (int) (offset >> CHUNK_BITS);
+		ByteBuffer[] c = chunks;
+		return chunk < c.length ? c[chunk] : null;
+	}
+
+	/**
+	 * Save to the file given to saveOnClose(), cut to length, and free the
+	 * memory if unmapOnClose() was asked for.
+	 *
+	 * @param length
+	 *            -1 to save all data
+	 */
+	@Override
+	public synchronized void close(long length) throws IOException {
+		if (saveTo != null) {
+			long end = length >= 0 ? length : length();
+			try (FileChannel channel = FileChannel.open(saveTo.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				for (long at = 0; at < end;) {
+					int n = (int) Math.min(end - at, CHUNK - index(at));
+					ByteBuffer b = slice(at, n);
+					while (b.hasRemaining()) {
+						channel.write(b, at + n - b.remaining());
+					}
+					at += n;
+				}
+				channel.force(false);
+			}
+		}
+		ByteBuffer[] c = chunks;
+		chunks = new ByteBuffer[0];
+		if (free) {
+			for (ByteBuffer b : c) {
+				if (b != null) {
+					BBBuffer.unmap(b);
+				}
+			}
+		}
+	}
+
+	/** Nothing to flush. */
+	@Override
+	public void flushEvery(long millis) {
+	}
+
+	/** Nothing to force. */
+	@Override
+	public void force() {
+	}
+
+	@Override
+	public ByteBuffer getBuffer(long offset) {
+		return slice(offset + Integer.BYTES, getInt(offset));
+	}
+
+	@Override
+	public int getInt(long offset) {
+		if (straddles(offset, Integer.BYTES)) {
+			return slice(offset, Integer.BYTES).getInt(0);
+		}
+		ByteBuffer buf = existing(offset);
+		return buf == null ? 0 : buf.getInt(index(offset));
+	}
+
+	@Override
+	public long getLong(long offset) {
+		if (straddles(offset, Long.BYTES)) {
+			return slice(offset, Long.BYTES).getLong(0);
+		}
+		ByteBuffer buf = existing(offset);
+		return buf == null ? 0 : buf.getLong(index(offset));
+	}
+
+	private static int index(long offset) {
+		return (int) (offset & CHUNK_MASK);
+	}
+
+	@Override
+	public long length() {
+		return length.get();
+	}
+
+	@Override
+	public void length(long l) {
+		length.set(l);
+	}
+
+	@Override
+	public boolean length(long expect, long length) {
+		return this.length.compareAndSet(expect, length);
+	}
+
+	@Override
+	public int putBuffer(long offset, ByteBuffer b) {
+		int size = b.remaining();
+		putInt(offset, size);
+		put(offset + Integer.BYTES, b);
+		written(offset + Integer.BYTES + size);
+		return Integer.BYTES + size;
+	}
+
+	/** encode in place, unless the bytes are in two chunks */
+	@Override
+	public int putEncoded(long offset, int size, Consumer<ByteBuffer> encoder) {
+		if (straddles(offset + Integer.BYTES, size)) {
+			return Storage.super.putEncoded(offset, size, encoder);
+		}
+		putInt(offset, size);
+		ByteBuffer dest = chunk(offset + Integer.BYTES).duplicate();
+		int index = index(offset + Integer.BYTES);
+		dest.limit(index + size).position(index);
+		encoder.accept(dest.slice());
+		written(offset + Integer.BYTES + size);
+		return Integer.BYTES + size;
+	}
+
+	/** copy src's remaining bytes to offset, a chunk at a time */
+	private void put(long offset, ByteBuffer src) {
+		src = src.duplicate();
+		while (src.hasRemaining()) {
+			int n = (int) Math.min(src.remaining(), CHUNK - index(offset));
+			ByteBuffer dest = chunk(offset).duplicate();
+			dest.position(index(offset));
+			ByteBuffer part = src.duplicate();
+			part.limit(part.position() + n);
+			dest.put(part);
+			src.position(src.position() + n);
+			offset += n;
+		}
+	}
+
+	@Override
+	public void putInt(long offset, int value) {
+		if (straddles(offset, Integer.BYTES)) {
+			put(offset, ByteBuffer.allocate(Integer.BYTES).putInt(0, value));
+		} else {
+			chunk(offset).putInt(index(offset), value);
+		}
+		written(offset + Integer.BYTES);
+	}
+
+	@Override
+	public void putLong(long offset, long value) {
+		if (straddles(offset, Long.BYTES)) {
+			put(offset, ByteBuffer.allocate(Long.BYTES).putLong(0, value));
+		} else {
+			chunk(offset).putLong(index(offset), value);
+		}
+		written(offset + Long.BYTES);
+	}
+
+	/** Write the data to fileName when closed, where a file constructor can open it. */
+	public void saveOnClose(File fileName) {
+		saveTo = fileName;
+	}
+
+	/**
+	 * @return an independent view of size bytes starting at offset. Bytes
+	 *         that cross from one chunk to the next are copied, and bytes of
+	 *         a chunk never written are zeros.
+	 */
+	private ByteBuffer slice(long offset, int size) {
+		if (straddles(offset, size)) {
+			ByteBuffer copy = ByteBuffer.allocate(size);
+			while (copy.hasRemaining()) {
+				long at = offset + copy.position();
+				copy.put(slice(at, (int) Math.min(copy.remaining(), CHUNK - index(at))));
+			}
+			return (ByteBuffer) copy.flip();
+		}
+		ByteBuffer buf = existing(offset);
+		if (buf == null) {
+			return ByteBuffer.allocate(size);
+		}
+		ByteBuffer dup = buf.duplicate();
+		int index = index(offset);
+		dup.limit(index + size).position(index);
+		return dup.slice();
+	}
+
+	/** @return true if size bytes at offset are in two or more chunks */
+	private static boolean straddles(long offset, int size) {
+		return (offset & CHUNK_MASK) + size > CHUNK;
+	}
+
+	/**
+	 * Free the memory when closed, instead of when it is garbage collected.
+	 * Buffers returned before then must not be used after close().
+	 */
+	@Override
+	public void unmapOnClose(boolean free) {
+		this.free = free;
+	}
+
+	private void written(long end) {
+		if (end > length.get()) {
+			length.accumulateAndGet(end, Math::max);
+		}
+	}
+}
@@ -4,13 +4,43 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PrimitiveIterator;
+import java.util.Queue;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
+import java.util.function.LongSupplier;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class PersistentBufferMap implements Map<ByteBuffer, ByteBuffer>, AutoCloseable {
 
@@ -19,28 +49,147 @@ public class PersistentBufferMap implements Map<ByteBuffer, ByteBuffer>, AutoClo
 	 * file structure:
 	 * version
 	 * indexSize
+	 * entries
+	 * buckets
+	 * segment.0 ... segment.31
+	 * free.0 ... free.15 free-bytes
+	 * live-bytes
+	 * engine
+	 * table capacity (ROBIN_HOOD only)
+	 * hash
+	 * prefixes
+	 * log
+	 * length (0 while open)
+	 * namespaces
+	 * (reserved to HEADER_SIZE)
 	 * index.0
 	 * index.1
 	 * index.2
 	 * ....
-	 * data(next, key, value)
-	 * data(next, key, value)
-	 * data(next, key, value)
+	 * data(next, hash, key, value)
+	 * data(next, hash, key, value)
+	 * index segment
+	 * data(next, hash, key, value)
 	 * </pre>
+	 *
+	 * The index grows by linear hashing. Buckets are split one at a time in
+	 * order, and the index slots of bucket indexSize&lt;&lt;(n-1) and above are
+	 * kept in segment n, which is allocated in the data region when the first
+	 * of its buckets is needed.
+	 *
+	 * Records that are replaced or removed go on size classed free lists (see
+	 * FreeList), and new records are written in the first free extent that
+	 * fits before appending to the end of the file. So buffers returned by
+	 * get() are only good until that entry is replaced or removed. Old values
+	 * returned by put() and remove() are copies.
+	 *
+	 * A map created with Engine.ROBIN_HOOD keeps its index in a RobinHoodIndex
+	 * table instead of chained buckets. It is grown by copying it to a table
+	 * twice the size in the data region.
+	 *
+	 * The number of entries, and of keys with each prefix passed to count(),
+	 * are kept in the file so that size() takes constant time. The prefix
+	 * counts are a record in the data region:
+	 *
+	 * <pre>
+	 * bytes n (count length prefix)...
+	 * </pre>
+	 *
+	 * verify() counts again, for a file that was not closed cleanly.
+	 *
+	 * A namespace is a map in the same file with a header and index of its
+	 * own, which are allocated in the data region. namespaces points to a
+	 * record of their headers:
+	 *
+	 * <pre>
+	 * bytes n (header name)...
+	 * </pre>
+	 *
+	 * A WriteBatch is committed by writing its records, unlinked and marked as
+	 * free space, and a log of its changes, which starts like a free extent
+	 * so that scan() skips it:
+	 *
+	 * <pre>
+	 * TAG|bytes n (record | -1 key)...
+	 * </pre>
+	 *
+	 * The file is forced, log is pointed at the log and forced again, the
+	 * changes are applied, and log is cleared and forced. A map opened with
+	 * log set applies the changes that are not already applied. With a
+	 * Durability other than COMMIT the changes are just applied.
+	 *
+	 * Keys are hashed by the KeyHash recorded in the header. Each record keeps
+	 * the hash of its key, so walking a chain compares one
+	 * int per record and only looks at the keys whose hash matches.
+	 *
+	 * Version 1 files have just version, indexSize and a fixed index, and do not
+	 * reuse space. Version 1 and 2 records have no hash. Free space in files
+	 * before version 4 is not tagged, so they are scanned in bucket order.
 	 */
 
 	// so that we can evolve the file format
-	static final private int VERSION = 1;
-	// maximum number of bytes to sample from key for hash value.
-	private static final int SAMPLES = 128;
+	static final private int VERSION = 4;
+
+	/** header offsets */
+	private static final long ENTRIES = 8;
+	private static final long BUCKETS = 16;
+	private static final long SEGMENTS = 24;
+	private static final int MAX_SEGMENTS = 32;
+	private static final long FREE = SEGMENTS + Long.BYTES * MAX_SEGMENTS;
+	private static final long LIVE = FREE + FreeList.HEADER_BYTES;
+	private static final long ENGINE = LIVE + Long.BYTES;
+	private static final long TABLE = ENGINE + Long.BYTES;
+	private static final long HASH = TABLE + RobinHoodIndex.HEADER_BYTES;
+	private static final long PREFIXES = HASH + Long.BYTES;
+	private static final long LOG = PREFIXES + Long.BYTES;
+	private static final long LENGTH = LOG + Long.BYTES;
+	private static final long NAMESPACES = LENGTH + Long.BYTES;
+	private static final long HEADER_SIZE = 512;
+
+	/** split a bucket when there are more entries than this per bucket */
+	private static final double LOAD_FACTOR = 1.0;
+
+	/** most entries load() puts at once */
+	private static final int BATCH = 1 << 16;
+
+	/** size of the initial index of a namespace */
+	private static final int NAMESPACE_INDEX = 16;
+
+	/** layout of the index */
+	public enum Engine {
+		/** buckets of linked records, grown by linear hashing */
+		CHAINED,
+		/** open addressed table of hash and offset. See RobinHoodIndex. */
+		ROBIN_HOOD
+	}
+
+	/** when changes are forced to disk */
+	public enum Durability {
+		/**
+		 * only by close(). The operating system writes changes back when it
+		 * chooses.
+		 */
+		NONE,
+		/** by a background thread every period. Commits do not wait. */
+		PERIODIC,
+		/**
+		 * by each WriteBatch commit, which waits for the batch to be on disk.
+		 * Only this makes commits atomic after a crash.
+		 */
+		COMMIT
+	}
 
 	public static void update(File file) throws Exception {
-		File temp = File.createTempFile("db", ".map", file.getParentFile());
+		File temp = File.createTempFile("db.", ".map", file.getAbsoluteFile().getParentFile());
 		try (PersistentBufferMap orig = new PersistentBufferMap(file, -1);
-				PersistentBufferMap tempMap = new PersistentBufferMap(temp, orig.size())) {
+				PersistentBufferMap tempMap = new PersistentBufferMap(temp, orig.size(), orig.engine(),
+						KeyHash.DEFAULT)) {
 			tempMap.putAll(orig);
+			for (String name : orig.namespaces()) {
+				tempMap.namespace(name).putAll(orig.namespace(name));
+			}
 		}
-		File backup = new File(file.getName() + ".bak");
+		File backup = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".bak");
 		if (file.renameTo(backup)) {
 			if (temp.renameTo(file)) {
 				backup.delete();
@@ -55,14 +204,85 @@ public class PersistentBufferMap implements Map<ByteBuffer, ByteBuffer>, AutoClo
 		}
 	}
 
-	final private BBBuffer buf;
+	final private Storage buf;
+
+	/** map of the file this is a namespace of, or null */
+	final private PersistentBufferMap root;
+
+	/** offset of the header. 0 but for namespaces. */
+	final private long base;
+
+	/** namespaces opened, by name. Only used by the root map. */
+	final private Map<String, PersistentBufferMap> namespaces = new HashMap<>();
+
+	/** file format version */
+	final private int version;
+
+	/** offset of the key within a record */
+	final private int keyOffset;
 
 	/** start of index */
 	final private long indexPointer;
 
-	/** number of entries in index */
+	/** number of entries in the initial index */
 	final private int indexSize;
 
+	/** start of data, just past the initial index */
+	final private long dataPointer;
+
+	/** current number of buckets. indexSize plus number of splits */
+	private volatile long buckets;
+
+	/** start of each index segment. Copy on write. */
+	private volatile long[] segments = new long[MAX_SEGMENTS];
+
+	/** number of entries */
+	final private AtomicLong entries = new AtomicLong();
+
+	/** bytes in live records. Only maintained for version 2 and later files. */
+	final private AtomicLong live = new AtomicLong();
+
+	/** key prefixes being counted. Copy on write. */
+	private volatile Prefix[] prefixes = {};
+
+	/** true once the end of data is known */
+	private volatile boolean recovered;
+
+	/** space from replaced and removed records. null for version 1 files. */
+	final private FreeList free;
+
+	/** hash of keys. SAMPLED for files from before it was recorded. */
+	final private KeyHash keyHash;
+
+	/** index of a ROBIN_HOOD map. null for CHAINED. */
+	final private RobinHoodIndex table;
+
+	private volatile Durability durability = Durability.COMMIT;
+
+	/** one thread commits at a time, for every batch queued meanwhile */
+	final private ReentrantLock commitLock = new ReentrantLock();
+
+	/** batches waiting to be committed */
+	final private Queue<WriteBatch> commits = new ConcurrentLinkedQueue<>();
+
+	/** true while a log may be replayed. Space freed meanwhile is deferred. */
+	private volatile boolean committing;
+
+	/**
+	 * true if the file was not closed cleanly, and records unlinked but not
+	 * freed may be left in it, until verify()
+	 */
+	private volatile boolean unswept;
+
+	/** number of snapshots that are not closed */
+	final private AtomicInteger snapshots = new AtomicInteger();
+
+	/** snapshots open on any map of the file. Only used by the root map. Copy on write. */
+	private volatile Snapshot[] views = {};
+
+	/** space freed while committing, or while there are readers or snapshots. {record, size} */
+	final private Queue<long[]> deferred = new ConcurrentLinkedQueue<>();
+
 	/**
 	 *
 	 * @param fileName
@@ -71,264 +291,2269 @@ public class PersistentBufferMap implements Map<ByteBuffer, ByteBuffer>, AutoClo
 	 * @throws IOException
 	 */
 	public PersistentBufferMap(File fileName, int indexSize) throws IOException {
+		this(fileName, indexSize, Engine.CHAINED);
+	}
+
+	public PersistentBufferMap(File fileName, int indexSize, Engine engine) throws IOException {
+		this(fileName, indexSize, engine, KeyHash.DEFAULT);
+	}
+
+	/**
+	 * @param engine
+	 *            layout of the index of a new map. Existing maps keep the
+	 *            layout they were created with.
+	 * @param keyHash
+	 *            hash of keys of a new map. Existing maps keep the hash they
+	 *            were created with.
+	 */
+	public PersistentBufferMap(File fileName, int indexSize, Engine engine, KeyHash keyHash) throws IOException {
+		this(open(fileName, indexSize), indexSize, engine, keyHash);
+	}
+
+	/** Map kept in storage, such as a MemoryStorage. */
+	public PersistentBufferMap(Storage storage, int indexSize) {
+		this(storage, indexSize, Engine.CHAINED, KeyHash.DEFAULT);
+	}
+
+	/**
+	 * Map kept in storage other than a memory mapped file, such as a
+	 * ChannelStorage or MemoryStorage.
+	 *
+	 * @param indexSize
+	 *            Expected size of Map. -1 to read existing map from storage.
+	 */
+	public PersistentBufferMap(Storage storage, int indexSize, Engine engine, KeyHash keyHash) {
+		this(storage, null, 0, indexSize, engine, keyHash);
+	}
+
+	/** namespace of root, with its header at base. See namespace(). */
+	PersistentBufferMap(PersistentBufferMap root, long base, int indexSize) {
+		this(root.buf, root, base, indexSize, root.engine(), root.keyHash);
+	}
+
+	private PersistentBufferMap(Storage storage, PersistentBufferMap root, long base, int indexSize, Engine engine,
+			KeyHash keyHash) {
+		buf = storage;
+		this.root = root;
+		this.base = base;
 		if (indexSize < 0) {
 			// read index from file
-			if (!fileName.exists()) {
-				throw new FileNotFoundException("PersistentMap file not found:" + fileName);
-			}
-			buf = BBBuffer.create(fileName);
-			int version = buf.getInt();
-			if (VERSION != version) {
+			version = buf.getInt(base);
+			if (version < 1 || version > VERSION) {
 				throw new IllegalStateException("Invalid version:" + version);
 			}
-			this.indexSize = buf.getInt();
-			indexPointer = buf.position();
+			this.indexSize = buf.getInt(base + Integer.BYTES);
+			if (version == 1) {
+				indexPointer = 2 * Integer.BYTES;
+				buckets = this.indexSize;
+				free = null;
+				table = null;
+				this.keyHash = KeyHash.SAMPLED;
+			} else {
+				indexPointer = base + HEADER_SIZE;
+				free = root != null ? root.free : new FreeList(buf, at(FREE), version >= 4);
+				entries.set(buf.getLong(at(ENTRIES)));
+				live.set(buf.getLong(at(LIVE)));
+				buckets = buf.getLong(at(BUCKETS));
+				for (int i = 1; i < MAX_SEGMENTS; i++) {
+					segments[i] = buf.getLong(at(SEGMENTS) + Long.BYTES * i);
+				}
+				table = buf.getLong(at(ENGINE)) == Engine.ROBIN_HOOD.ordinal() ? new RobinHoodIndex(this, buf, at(TABLE))
+						: null;
+				this.keyHash = KeyHash.values()[(int) buf.getLong(at(HASH))];
+				long end = root != null ? 0 : buf.getLong(at(LENGTH));
+				unswept = root == null && end == 0 && version >= 4 && !buf.isReadOnly();
+				if (end > 0) {
+					// closed cleanly. Cleared until the next close, so that
+					// after a crash the end of data is found again.
+					buf.length(end);
+					recovered = true;
+					if (!buf.isReadOnly()) {
+						buf.putLong(at(LENGTH), 0);
+						buf.force();
+					}
+				}
+			}
+			segments[0] = indexPointer;
+			dataPointer = indexPointer + Long.BYTES * this.indexSize;
+			keyOffset = Long.BYTES + (version < 3 ? 0 : Integer.BYTES);
+			if (version == 1) {
+				// no count in the file
+				recount();
+			} else {
+				prefixes = readPrefixes();
+				if (root == null) {
+					// namespaces replay once they are opened
+					replay();
+				}
+			}
 		} else {
 			// create new file with index of side indexSize
-			if (fileName.exists() && fileName.length() > 0) {
-				throw new IllegalStateException("PersistentMap file already exists:" + fileName);
+			if (root == null && buf.getInt(0) != 0) {
+				throw new IllegalStateException("PersistentMap already exists in storage");
+			}
+			version = VERSION;
+			this.indexSize = engine == Engine.ROBIN_HOOD
+					? (int) RobinHoodIndex.capacity(Math.min(indexSize, 1 << 30))
+					: Math.max(1, indexSize);
+			buf.putInt(base, VERSION);
+			buf.putInt(base + Integer.BYTES, this.indexSize);
+			buckets = this.indexSize;
+			buf.putLong(at(BUCKETS), buckets);
+			indexPointer = base + HEADER_SIZE;
+			segments[0] = indexPointer;
+			buf.putLong(at(SEGMENTS), indexPointer);
+			dataPointer = indexPointer + Long.BYTES * this.indexSize;
+			keyOffset = Long.BYTES + Integer.BYTES;
+			free = root != null ? root.free : new FreeList(buf, at(FREE), true);
+			buf.putLong(at(ENGINE), engine.ordinal());
+			this.keyHash = keyHash;
+			buf.putLong(at(HASH), keyHash.ordinal());
+			if (engine == Engine.ROBIN_HOOD) {
+				table = new RobinHoodIndex(this, buf, at(TABLE), indexPointer, this.indexSize);
+			} else {
+				table = null;
+				for (int i = 0; i < this.indexSize; i++) {
+					buf.putLong(slot(i), -1);
+				}
 			}
-			buf = BBBuffer.create(fileName);
-			this.indexSize = indexSize;
-			buf.putInt(VERSION);
-			buf.putInt(indexSize);
-			indexPointer = buf.position();
-			clear();
+			recovered = true;
 		}
 	}
 
-	private int bucket(ByteBuffer key) {
-		int hash = 1;
-		// don't sample more than SAMPLES
-		int step = key.limit() > SAMPLES ? key.limit() / SAMPLES : 1;
-		for (int i = key.limit() - 1; i >= 0; i = i - step) {
-			hash = 31 * hash + key.get(i);
+	/**
+	 * Open an existing map read only. Any number of processes may read a map
+	 * while one process writes it, as long as it is CHAINED. Space freed by
+	 * the writer is not reused while readers are open. Entries written since
+	 * opening are seen as they are linked; see refresh() for the rest.
+	 */
+	public static PersistentBufferMap readOnly(File fileName) throws IOException {
+		if (!fileName.exists()) {
+			throw new FileNotFoundException("PersistentMap file not found:" + fileName);
 		}
-		return (0x7FFFFFFF & hash) % indexSize;
+		return new PersistentBufferMap(BBBuffer.readOnly(fileName), -1, Engine.CHAINED, KeyHash.DEFAULT);
 	}
 
-	@Override
-	/** Remove all contents of this map. */
-	public void clear() {
-		buf.position(indexPointer);
-		for (int i = 0; i < indexSize; i++) {
-			buf.putLong(-1);
+	/**
+	 * Pick up the changes a writer in another process made to a read only map
+	 * that are not seen otherwise: a grown ROBIN_HOOD table, prefix counts and
+	 * the end of data.
+	 */
+	public void refresh() {
+		if (table != null) {
+			table.reload();
+		}
+		if (version != 1) {
+			prefixes = readPrefixes();
+			long end = buf.getLong(at(LENGTH));
+			if (end > 0) {
+				buf.length(end);
+			} else {
+				recovered = false;
+			}
 		}
 	}
 
-	@Override
-	public void close() throws Exception {
-		// leave junk at end of file. Unable to truncate a memory mapped file.
-		// Unable to close memory map.
-		// file.setLength(eof);
-		buf.close();
+	/**
+	 * @return memory mapped storage of fileName, which must exist if
+	 *         indexSize is -1, and must not otherwise
+	 */
+	private static Storage open(File fileName, int indexSize) throws IOException {
+		if (indexSize < 0 && !fileName.exists()) {
+			throw new FileNotFoundException("PersistentMap file not found:" + fileName);
+		}
+		if (indexSize >= 0 && fileName.exists() && fileName.length() > 0) {
+			throw new IllegalStateException("PersistentMap file already exists:" + fileName);
+		}
+		return BBBuffer.create(fileName);
 	}
 
-	@Override
-	public boolean containsKey(Object key) {
-		return get(key) != null;
+	/** @return offset of a field of the header */
+	private long at(long field) {
+		return base + field;
 	}
 
-	@Override
-	public boolean containsValue(Object value) {
-		return stream().anyMatch(entry -> entry.getValue().equals(value));
+	/**
+	 * @return the map of namespace name in this file, created if there is
+	 *         none. A namespace has its own index and counts, so the cost of
+	 *         its size() and iteration is in proportion to it, not the file.
+	 *         It shares the file's free space, and its Storage settings.
+	 */
+	public PersistentBufferMap namespace(String name) {
+		if (!hasNamespaces()) {
+			throw new IllegalStateException("Namespaces need a version " + VERSION + " file, and do not nest:" + name);
+		}
+		// find the end of data before locking namespaces, since that reads them
+		length();
+		synchronized (namespaces) {
+			PersistentBufferMap ns = namespaces.get(name);
+			if (ns == null) {
+				Map<String, Long> directory = directory();
+				Long header = directory.get(name);
+				if (header == null) {
+					long slots = engine() == Engine.ROBIN_HOOD ? RobinHoodIndex.capacity(NAMESPACE_INDEX)
+							: NAMESPACE_INDEX;
+					header = allocate(HEADER_SIZE + Long.BYTES * slots);
+					for (long at = header; at < header + HEADER_SIZE; at += Long.BYTES) {
+						buf.putLong(at, 0);
+					}
+					ns = newNamespace(header, NAMESPACE_INDEX);
+					directory.put(name, header);
+					writeDirectory(directory);
+				} else {
+					ns = newNamespace(header, -1);
+					ns.replay();
+				}
+				namespaces.put(name, ns);
+			}
+			return ns;
+		}
 	}
 
-	@Override
-	public Set<java.util.Map.Entry<ByteBuffer, ByteBuffer>> entrySet() {
-		return stream().collect(Collectors.toSet());
+	/** @return a namespace of this map, of the same class */
+	PersistentBufferMap newNamespace(long header, int indexSize) {
+		return new PersistentBufferMap(this, header, indexSize);
 	}
 
-	@Override
-	public boolean equals(Object obj) {
-		return obj instanceof Map && entrySet().equals(((Map<?, ?>) obj).entrySet());
+	/** @return true if this map may have namespaces */
+	boolean hasNamespaces() {
+		return root == null && version >= 4;
 	}
 
-	@Override
-	public ByteBuffer get(Object key) {
-		// read the index entry
-		int bucket = bucket((ByteBuffer) key);
-		buf.position(indexPointer + Long.BYTES * bucket);
-		long listPointer = buf.getLong();
-		while (listPointer > 0) {
-			// iterate through the bucket of pairs
-			buf.position(listPointer);
-			listPointer = buf.getLong();// next
-			ByteBuffer candidate = buf.getBuffer();
-			ByteBuffer value = buf.getBuffer();
-			if (candidate.equals(key)) {
-				return value;
+	/** @return true if this map was opened by readOnly() */
+	public boolean isReadOnly() {
+		return buf.isReadOnly();
+	}
+
+	/** @return names of the namespaces in this file */
+	public Set<String> namespaces() {
+		return root != null ? Collections.emptySet() : directory().keySet();
+	}
+
+	/** @return header of each namespace recorded in the file, by name */
+	private Map<String, Long> directory() {
+		Map<String, Long> directory = new LinkedHashMap<>();
+		long record = version < 4 ? 0 : buf.getLong(at(NAMESPACES));
+		if (record > 0) {
+			long n = buf.getLong(record + Long.BYTES);
+			long at = record + 2 * Long.BYTES;
+			for (long i = 0; i < n; i++) {
+				ByteBuffer name = buf.getBuffer(at + Long.BYTES);
+				long size = align(Long.BYTES + Integer.BYTES + name.remaining());
+				directory.put(StandardCharsets.UTF_8.decode(name).toString(), buf.getLong(at));
+				at += size;
 			}
 		}
-		return null;
+		return directory;
 	}
 
-	@Override
-	public int hashCode() {
-		return stream().mapToInt(b -> b.hashCode()).sum();
+	/**
+	 * Write the headers of namespaces to a new record in the data region, and
+	 * free the old one.
+	 */
+	private void writeDirectory(Map<String, Long> directory) {
+		long old = buf.getLong(at(NAMESPACES));
+		List<ByteBuffer> names = new ArrayList<>();
+		long bytes = 2 * Long.BYTES;
+		for (String name : directory.keySet()) {
+			ByteBuffer b = StandardCharsets.UTF_8.encode(name);
+			names.add(b);
+			bytes += align(Long.BYTES + Integer.BYTES + b.remaining());
+		}
+		long record = allocate(bytes);
+		buf.putLong(record, bytes);
+		buf.putLong(record + Long.BYTES, names.size());
+		long at = record + 2 * Long.BYTES;
+		int i = 0;
+		for (long header : directory.values()) {
+			buf.putLong(at, header);
+			at += align(Long.BYTES + buf.putBuffer(at + Long.BYTES, names.get(i++)));
+		}
+		buf.putLong(at(NAMESPACES), record);
+		if (old > 0) {
+			reuse(old, buf.getLong(old));
+		}
 	}
 
-	@Override
-	public boolean isEmpty() {
-		buf.position(indexPointer);
-		for (int index = 0; index < indexSize; index++) {
-			if (buf.getLong() >= 0) {
-				return false;
-			}
+	/** @return when changes are forced to disk */
+	public Durability durability() {
+		return durability;
+	}
+
+	/**
+	 * Set when changes are forced to disk. The default is COMMIT.
+	 *
+	 * @param millis
+	 *            period of PERIODIC flushes
+	 */
+	public void durability(Durability durability, long millis) {
+		this.durability = durability;
+		buf.flushEvery(durability == Durability.PERIODIC ? millis : 0);
+	}
+
+	/**
+	 * Release the mappings of the file on close(). Buffers returned by get()
+	 * and the like must not be used after that.
+	 */
+	public void unmapOnClose(boolean unmap) {
+		buf.unmapOnClose(unmap);
+	}
+
+	/** Set how the file is extended when data reaches its end. */
+	public void growth(Storage.Growth growth) {
+		buf.growth(growth);
+	}
+
+	/** @return an empty batch of changes to this map */
+	public WriteBatch batch() {
+		return new WriteBatch(this);
+	}
+
+	/**
+	 * Reserve size bytes, from the free lists if something fits, otherwise at
+	 * the end of data.
+	 */
+	private long allocate(long size) {
+		long extent = free == null ? -1 : free.allocate(size);
+		if (extent >= 0) {
+			return allocated(extent, size);
 		}
-		return true;
+		length();
+		return allocated(buf.allocate(size), size);
 	}
 
-	@Override
-	public Set<ByteBuffer> keySet() {
-		return stream().map(x -> x.getKey()).collect(Collectors.toSet());
+	/**
+	 * Tell the open snapshots of the file that the size bytes at extent are
+	 * new, so that they pass over them.
+	 *
+	 * @return extent
+	 */
+	private long allocated(long extent, long size) {
+		for (Snapshot s : file().views) {
+			s.fresh.put(extent, extent + size);
+		}
+		return extent;
 	}
 
-	@Override
-	public ByteBuffer put(ByteBuffer key, ByteBuffer value) {
-		long offset = buf.length();
-		buf.position(offset);
-		buf.putLong(-1);
-		buf.putBuffer(key);
-		buf.putBuffer(value);
-
-		// read the index entry
-		buf.position(indexPointer + Long.BYTES * bucket(key));
-		long oldPointer = buf.position();
-		long listPointer = buf.getLong();
-		while (true) {
-			if (listPointer < 0) {
-				// no replacement, just append
-				buf.position(oldPointer);
-				buf.putLong(offset);
-				return null;
-			}
-			// iterate through the bucket of pairs
-			buf.position(listPointer);
-			long oldP2 = buf.position();
-			listPointer = buf.getLong();
-			ByteBuffer candidate = buf.getBuffer();
-			ByteBuffer old = buf.getBuffer();
-			key.rewind(); // really
-			if (candidate.equals(key)) {
-				// replacing old value in linked list
-				buf.position(oldPointer);
-				buf.putLong(offset);
-				buf.position(offset);
-				buf.putLong(listPointer);
-				return old;
+	/**
+	 * Called before a record that was staged is linked, since snapshots
+	 * taken since it was staged did not see it allocated.
+	 */
+	void renew(long record) {
+		allocated(record, size(record));
+	}
+
+	/**
+	 * Records start on 8 byte boundaries so that next pointers can be updated
+	 * atomically.
+	 */
+	private static long align(long size) {
+		return (size + Long.BYTES - 1) & -Long.BYTES;
+	}
+
+	int bucket(ByteBuffer key) {
+		return bucket(hash(key), buckets());
+	}
+
+	/** linear hashing: buckets before the split pointer use the next level */
+	private int bucket(int hash, long buckets) {
+		long low = (long) indexSize << level(buckets);
+		long bucket = hash % low;
+		return (int) (bucket < buckets - low ? hash % (low << 1) : bucket);
+	}
+
+	/**
+	 * @return current number of buckets, including splits made by other
+	 *         instances sharing the file. For ROBIN_HOOD maps, the number of
+	 *         table slots.
+	 */
+	long buckets() {
+		if (table != null) {
+			return table.capacity();
+		}
+		long b = buckets;
+		if (version != 1 && buf.getLong(at(BUCKETS)) > b) {
+			synchronized (buf) {
+				long[] s = segments.clone();
+				for (int i = 1; i < MAX_SEGMENTS; i++) {
+					s[i] = buf.getLong(at(SEGMENTS) + Long.BYTES * i);
+				}
+				segments = s;
+				b = buckets = Math.max(buckets, buf.getLong(at(BUCKETS)));
 			}
-			oldPointer = oldP2;
 		}
+		return b;
 	}
 
 	@Override
-	public void putAll(Map<? extends ByteBuffer, ? extends ByteBuffer> m) {
-		m.forEach((k, v) -> put(k, v));
+	/** Remove all contents of this map. */
+	public void clear() {
+		for (int i = 0; i < buckets(); i++) {
+			long r = first(i);
+			if (table == null) {
+				buf.putLong(slot(i), -1);
+			}
+			while (r >= 0) {
+				long next = next(r);
+				free(r);
+				r = next;
+			}
+		}
+		if (table != null) {
+			table.clear();
+		}
+		entries.set(0);
+		store(at(ENTRIES), entries);
+		for (Prefix p : prefixes) {
+			p.count.set(0);
+			store(p.offset, p.count);
+		}
 	}
 
+	/**
+	 * Record the end of data in the file, and cut the file there, unless
+	 * another map in this process has it open. Closing a namespace leaves the
+	 * file open, and closing the root closes its namespaces. Space that
+	 * snapshots or readers may still be using is not freed. The end of data
+	 * is not recorded then, nor until verify() once a file is unswept, so
+	 * that the next open finds it unswept too.
+	 */
 	@Override
-	public ByteBuffer remove(Object key) {
-		// read the index entry
-		buf.position(indexPointer + Long.BYTES * bucket((ByteBuffer) key));
-		long oldPointer = buf.position();
-		long listPointer = buf.getLong();
-		while (true) {
-			if (listPointer < 0) {
-				return null;
+	public void close() throws Exception {
+		if (root != null) {
+			// the file stays open for the root and its other namespaces
+			root.deferred.addAll(deferred);
+			deferred.clear();
+			return;
+		}
+		boolean used = snapshots.get() > 0 || buf.hasReaders();
+		synchronized (namespaces) {
+			for (PersistentBufferMap ns : namespaces.values()) {
+				ns.close();
+				used |= ns.snapshots.get() > 0;
+			}
+		}
+		if (!used) {
+			freeDeferred();
+		}
+		if (version == 1 || buf.isShared() || buf.isReadOnly()) {
+			buf.close();
+		} else {
+			long end = length();
+			if (deferred.isEmpty() && !unswept) {
+				buf.putLong(at(LENGTH), end);
 			}
-			buf.position(listPointer);
-			long old2 = buf.position();
-			listPointer = buf.getLong();
-			ByteBuffer candidate = buf.getBuffer();
-			ByteBuffer value = buf.getBuffer();
-			if (candidate.equals(key)) {
-				buf.position(oldPointer);
-				buf.putLong(listPointer);
-				return value;
+			buf.close(end);
+		}
+	}
+
+	/**
+	 * Apply the changes of batch, and of any batches other threads are
+	 * committing at the same time, then force them to disk.
+	 */
+	void commit(WriteBatch batch) {
+		batch.changes().forEach((key, value) -> batch.staged.put(key, value == null ? -1L : stage(key, value)));
+		commits.add(batch);
+		commitLock.lock();
+		try {
+			if (!batch.isDone()) {
+				List<WriteBatch> group = new ArrayList<>();
+				for (WriteBatch b = commits.poll(); b != null; b = commits.poll()) {
+					group.add(b);
+				}
+				RuntimeException failure = null;
+				try {
+					commit(group);
+				} catch (RuntimeException e) {
+					failure = e;
+				}
+				for (WriteBatch b : group) {
+					b.done(failure);
+				}
 			}
-			oldPointer = old2;
+		} finally {
+			commitLock.unlock();
 		}
+		batch.check();
 	}
 
-	@Override
-	/** will return invalid values for > Integer.MAX_VALUE */
-	public int size() {
-		int count = 0;
-		for (int i = 0; i < indexSize; i++) {
-			buf.position(indexPointer + i * Long.BYTES);
-			long list = buf.getLong();
-			while (list >= 0) {
-				count++;
-				buf.position(list);
-				list = buf.getLong();
+	/** @see #commit(WriteBatch) */
+	private void commit(List<WriteBatch> group) {
+		// the last change to each key wins
+		Map<ByteBuffer, Long> changes = new LinkedHashMap<>();
+		for (WriteBatch b : group) {
+			b.staged.forEach((key, record) -> {
+				Long replaced = changes.put(key, record);
+				if (replaced != null && replaced >= 0) {
+					free(replaced);
+				}
+			});
+		}
+		if (changes.isEmpty()) {
+			return;
+		}
+		if (version == 1 || durability != Durability.COMMIT) {
+			// without forces between them, the log could reach the disk
+			// before its records. Version 1 has no room for a log.
+			apply(changes);
+			if (durability == Durability.COMMIT) {
+				buf.force();
 			}
+			return;
 		}
-		return count;
+		long bytes = 2 * Long.BYTES + changes.entrySet().stream()
+				.mapToLong(c -> Long.BYTES + (c.getValue() < 0 ? align(Integer.BYTES + c.getKey().remaining()) : 0))
+				.sum();
+		long[] log = { 0 };
+		exclusive(() -> {
+			log[0] = allocate(bytes);
+			buf.putLong(log[0], FreeList.TAG | bytes);
+			buf.putLong(log[0] + Long.BYTES, changes.size());
+			long at = log[0] + 2 * Long.BYTES;
+			for (Map.Entry<ByteBuffer, Long> c : changes.entrySet()) {
+				buf.putLong(at, c.getValue());
+				at += Long.BYTES;
+				if (c.getValue() < 0) {
+					at += align(buf.putBuffer(at, c.getKey()));
+				}
+			}
+		});
+		committing = true;
+		try {
+			buf.force();
+			buf.putLong(at(LOG), log[0]);
+			buf.force();
+			apply(changes);
+			buf.putLong(at(LOG), 0);
+			buf.force();
+		} finally {
+			committing = false;
+		}
+		if (snapshots.get() == 0 && !buf.hasReaders()) {
+			freeDeferred();
+		}
+		// readers never follow the log
+		free.free(log[0], bytes);
 	}
 
-	public Stream<java.util.Map.Entry<ByteBuffer, ByteBuffer>> stream() {
-		return IntStream.range(0, indexSize)
-				.sequential()
-				.mapToObj(i -> {
-					Stream.Builder<java.util.Map.Entry<ByteBuffer, ByteBuffer>> sb = Stream.builder();
-					long offset = indexPointer + Long.BYTES * i;
-					buf.position(offset);
-					offset = buf.getLong();
-					while (offset > 0) {
-						buf.position(offset);
-						offset = buf.getLong();
-						sb.add(new AbstractMap.SimpleEntry<>(buf.getBuffer(), buf.getBuffer()));
-					}
-					return sb.build();
-				}).flatMap(x -> x);
+	/** link each staged record, or remove the key if it is -1 */
+	private void apply(Map<ByteBuffer, Long> changes) {
+		changes.forEach((key, record) -> {
+			if (record < 0) {
+				remove(key);
+			} else {
+				publish(key, record);
+			}
+		});
 	}
 
-	@Override
-	public String toString() {
-		buf.position(0);
-		StringBuffer sb = new StringBuffer();
-		sb.append("version:" + buf.getInt() + "\n");
-		int size;
-		sb.append("size:" + (size = buf.getInt()) + "\n");
-		long indexPointer = buf.position;
-		sb.append("index:\n");
-		for (int i = 0; i < size; i++) {
-			sb.append("  ").append(i + ":" + buf.getLong() + "\n");
+	/**
+	 * Move records into free space nearer the start of data, then drop the
+	 * free space left at the end of data so that appends reuse it. Works one
+	 * bucket at a time, so a ConcurrentPersistentBufferMap stays available to
+	 * other threads while it runs. The file itself keeps its length while it
+	 * is mapped.
+	 *
+	 * @param bytesPerSecond
+	 *            most bytes of records to move per second. 0 for no limit.
+	 * @return bytes dropped from the end of data
+	 * @throws InterruptedException
+	 */
+	public long compact(long bytesPerSecond) throws InterruptedException {
+		if (free == null) {
+			return 0;
 		}
-		sb.append("data:\n");
-		for (int i = 0; i < size; i++) {
-			buf.position(indexPointer + Long.BYTES * i);
-			long listId = buf.getLong();
-			sb.append("  ").append(i).append("->");
-			if (listId >= 0) {
-				sb.append(toString(listId));
+		length();
+		long start = System.nanoTime();
+		long moved = 0;
+		for (long i = 0; i < buckets(); i++) {
+			moved += relocate(i);
+			if (bytesPerSecond > 0) {
+				long wait = start + (long) (1e9 * moved / bytesPerSecond) - System.nanoTime();
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
 			}
-			sb.append("\n");
 		}
-		sb.append("done");
-		return sb.toString();
-		// return entrySet().toString().replaceAll(",", ",\n");
+		long[] trimmed = { 0 };
+		exclusive(() -> trimmed[0] = free.trim());
+		return trimmed[0];
 	}
 
-	private String toString(BBBuffer buf2) {
-		ByteBuffer buffer = buf2.getBuffer();
-		String str = "bbb:" + buffer.limit() + ":";
-		for (int i = buffer.limit() - 1; i >= 0; i--) {
-			str += String.format(" %02X", buffer.get());
+	/**
+	 * @return number of keys that start with prefix. The first call for a
+	 *         prefix counts the keys, and from then on they are counted as
+	 *         they are added and removed. A read only map cannot record a
+	 *         new prefix, so it counts the keys on every call.
+	 */
+	public long count(ByteBuffer prefix) {
+		for (Prefix p : prefixes) {
+			if (p.bytes.equals(prefix)) {
+				return version == 1 ? p.count.get() : buf.getLong(p.offset);
+			}
 		}
-		return str;
+		if (isReadOnly()) {
+			Prefix p = new Prefix((ByteBuffer) ByteBuffer.allocate(prefix.remaining()).put(prefix.duplicate()).flip(),
+					-1, 0);
+			return stream().filter(e -> p.matches(e.getKey())).count();
+		}
+		exclusive(() -> {
+			for (Prefix p : prefixes) {
+				if (p.bytes.equals(prefix)) {
+					return;
+				}
+			}
+			Prefix[] ps = Arrays.copyOf(prefixes, prefixes.length + 1);
+			ps[prefixes.length] = new Prefix((ByteBuffer) ByteBuffer.allocate(prefix.remaining())
+					.put(prefix.duplicate()).flip(), -1, 0);
+			writePrefixes(ps);
+			recount();
+		});
+		return count(prefix);
 	}
 
-	// toString(list Id)
-	private Object toString(long id) {
-		buf.position(id);
-		long next = buf.getLong();
-		String str = "list:" + id + ": \n\t" + toString(buf) + "\n\t\t" + toString(buf);
-		if (next >= 0) {
-			str += "->" + toString(next) + "\n";
+	@Override
+	public boolean containsKey(Object key) {
+		long epoch = enter();
+		try {
+			return find((ByteBuffer) key) >= 0;
+		} finally {
+			exit(epoch);
 		}
-		return str;
+	}
+
+	/**
+	 * Called before following pointers without holding a lock. Space freed
+	 * after enter() may not be reused until the matching exit().
+	 *
+	 * @return token for exit()
+	 */
+	long enter() {
+		return 0;
+	}
+
+	/** @see #enter() */
+	void exit(long epoch) {
+	}
+
+	/** @return hash of keys */
+	public KeyHash keyHash() {
+		return keyHash;
+	}
+
+	/** @return layout of the index */
+	public Engine engine() {
+		return table == null ? Engine.CHAINED : Engine.ROBIN_HOOD;
+	}
+
+	/**
+	 * Run task while no other thread changes the map. Writers of this class
+	 * are not shared, so it just runs.
+	 */
+	void exclusive(Runnable task) {
+		task.run();
+	}
+
+	/** @return the result of task, run while no other thread writes key */
+	long locked(ByteBuffer key, LongSupplier task) {
+		return task.getAsLong();
+	}
+
+	/** @return b, or a copy of b if the record it views may be reused. */
+	ByteBuffer export(ByteBuffer b) {
+		return b;
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		return !scan((k, v) -> !v.equals(value));
+	}
+
+	@Override
+	public Set<java.util.Map.Entry<ByteBuffer, ByteBuffer>> entrySet() {
+		return stream().collect(Collectors.toSet());
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof Map && entrySet().equals(((Map<?, ?>) obj).entrySet());
+	}
+
+	/** @return offset of the record for key, or -1 if not found */
+	private long find(ByteBuffer key) {
+		int hash = hash(key);
+		if (table != null) {
+			return table.find(hash, key);
+		}
+		while (true) {
+			long b = buckets();
+			for (long r = buf.getLong(slot(bucket(hash, b))); r >= 0; r = buf.getLong(r)) {
+				if (matches(r, hash, key)) {
+					return r;
+				}
+			}
+			// a split may have moved the key while we were looking
+			if (b == buckets()) {
+				return -1;
+			}
+		}
+	}
+
+	/** @return first record of bucket, or -1 if it is empty */
+	private long first(long bucket) {
+		return table != null ? table.get(bucket) : buf.getLong(slot(bucket));
+	}
+
+	/** Split one bucket if there are too many entries per bucket. */
+	void grow() {
+		if (table != null) {
+			if (table.overloaded(entries.get())) {
+				growTable();
+			}
+		} else if (overloaded()) {
+			split();
+		}
+	}
+
+	/**
+	 * Move a ROBIN_HOOD index to a table of twice the size, starting on a
+	 * cache line. The initial table is left where it is.
+	 */
+	private void growTable() {
+		long size = 2 * Long.BYTES * table.capacity();
+		long extent = allocate(size + RobinHoodIndex.LINE - Long.BYTES);
+		long start = (extent + RobinHoodIndex.LINE - 1) & -RobinHoodIndex.LINE;
+		free.free(extent, start - extent);
+		free.free(start + size, extent + size + RobinHoodIndex.LINE - Long.BYTES - start - size);
+		long old = table.grow(start);
+		if (old != indexPointer) {
+			// readers and snapshots may still be probing it
+			reuse(old, size / 2);
+		}
+	}
+
+	/** @return hash of the key of the record at r */
+	private int hash(long r) {
+		return keyOffset == Long.BYTES ? hash(key(r)) : buf.getInt(r + Long.BYTES);
+	}
+
+	private int hash(ByteBuffer key) {
+		return keyHash.hash31(key);
+	}
+
+	/**
+	 * @return for CHAINED maps, element n is the number of buckets holding n
+	 *         entries. For ROBIN_HOOD maps, element n is the number of entries
+	 *         n slots past their home slot.
+	 */
+	public long[] histogram() {
+		long[] histogram = new long[1];
+		long epoch = enter();
+		try {
+			for (long i = 0; i < buckets(); i++) {
+				int n = 0;
+				if (table != null) {
+					n = (int) table.distance(i);
+					if (n < 0) {
+						continue;
+					}
+				} else {
+					for (long r = first(i); r >= 0; r = next(r)) {
+						n++;
+					}
+				}
+				if (n >= histogram.length) {
+					histogram = Arrays.copyOf(histogram, n + 1);
+				}
+				histogram[n]++;
+			}
+		} finally {
+			exit(epoch);
+		}
+		return histogram;
+	}
+
+	/**
+	 * Put record's space on the free lists. Only called once the record is
+	 * unlinked.
+	 */
+	void free(long record) {
+		for (Snapshot s : file().views) {
+			s.unlinked(this, record);
+		}
+		if (free != null) {
+			long size = size(record);
+			live.addAndGet(-size);
+			store(at(LIVE), live);
+			reuse(record, size);
+		}
+	}
+
+	/**
+	 * Put size bytes at record on the free lists. While a commit's log may be
+	 * replayed, space is held back so that the records it names stay intact.
+	 * So is space freed while snapshots, or read only maps in other processes,
+	 * are open.
+	 */
+	void reuse(long record, long size) {
+		if (committing || snapshots.get() > 0 || buf.hasReaders()) {
+			deferred.add(new long[] { record, size });
+		} else {
+			freeDeferred();
+			free.free(record, size);
+		}
+	}
+
+	private void freeDeferred() {
+		for (long[] d = deferred.poll(); d != null; d = deferred.poll()) {
+			free.free(d[0], d[1]);
+		}
+	}
+
+	/**
+	 * Apply the log of a commit that was interrupted. Changes that were
+	 * already applied are skipped.
+	 */
+	private void replay() {
+		long log = buf.getLong(at(LOG));
+		if (log <= 0 || buf.isReadOnly()) {
+			// a read only map waits for the writer to apply it
+			return;
+		}
+		long count = buf.getLong(log + Long.BYTES);
+		long at = log + 2 * Long.BYTES;
+		for (long i = 0; i < count; i++) {
+			long record = buf.getLong(at);
+			at += Long.BYTES;
+			ByteBuffer key;
+			if (record < 0) {
+				key = buf.getBuffer(at);
+				at += align(Integer.BYTES + key.remaining());
+			} else {
+				key = key(record);
+			}
+			long old = find(key);
+			if (old == record) {
+				continue;
+			}
+			if (old >= 0) {
+				if (table != null) {
+					table.remove(hash(key), key);
+				} else {
+					long link = link(key);
+					buf.putLong(link, buf.getLong(old));
+				}
+				long size = size(old);
+				live.addAndGet(-size);
+				store(at(LIVE), live);
+				free.free(old, size);
+			}
+			if (record >= 0) {
+				buf.putLong(record, -1);
+				if (table != null) {
+					table.put(hash(record), key, record);
+				} else {
+					// end of the chain
+					buf.putLong(link(key), record);
+				}
+			}
+			if (old < 0) {
+				inserted(key);
+			} else if (record < 0) {
+				deleted(key);
+			}
+		}
+		buf.putLong(at(LOG), 0);
+		buf.force();
+		free.free(log, ~FreeList.TAG & buf.getLong(log));
+	}
+
+	@Override
+	public ByteBuffer get(Object key) {
+		long epoch = enter();
+		try {
+			long r = find((ByteBuffer) key);
+			return r < 0 ? null : export(value(r));
+		} finally {
+			exit(epoch);
+		}
+	}
+
+	@Override
+	public int hashCode() {
+		return stream().mapToInt(b -> b.hashCode()).sum();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @return end of data. The data length is only recorded in the file by
+	 *         close(), so the first call after opening a map that was not
+	 *         closed cleanly walks the index and free lists to find it.
+	 */
+	private long length() {
+		if (root != null) {
+			return root.length();
+		}
+		if (!recovered) {
+			synchronized (buf) {
+				if (!recovered) {
+					// writes in place may already have moved buf.length()
+					long end = Math.max(buf.length(), end());
+					if (free != null) {
+						end = Math.max(end, free.end());
+					}
+					for (long header : directory().values()) {
+						end = Math.max(end, new PersistentBufferMap(this, header, -1).end());
+					}
+					buf.length(align(end));
+					recovered = true;
+				}
+			}
+		}
+		return buf.length();
+	}
+
+	/** @return end of the index, records and counts of this map */
+	private long end() {
+		long end = dataPointer;
+		for (int k = 1; k < MAX_SEGMENTS && segments[k] > 0; k++) {
+			end = Math.max(end, segments[k] + Long.BYTES * ((long) indexSize << (k - 1)));
+		}
+		if (table != null) {
+			end = Math.max(end, table.table() + Long.BYTES * table.capacity());
+		}
+		for (int i = 0; i < buckets(); i++) {
+			for (long r = first(i); r >= 0; r = next(r)) {
+				end = Math.max(end, r + size(r));
+			}
+		}
+		if (version != 1) {
+			for (long record : new long[] { buf.getLong(at(PREFIXES)), buf.getLong(at(NAMESPACES)) }) {
+				if (record > 0) {
+					end = Math.max(end, record + buf.getLong(record));
+				}
+			}
+		}
+		return end;
+	}
+
+	/** key was added to the map */
+	void inserted(ByteBuffer key) {
+		entries.incrementAndGet();
+		store(at(ENTRIES), entries);
+		prefixed(key);
+	}
+
+	/** count key for each prefix it has */
+	private void prefixed(ByteBuffer key) {
+		for (Prefix p : prefixes) {
+			if (p.matches(key)) {
+				p.count.incrementAndGet();
+				store(p.offset, p.count);
+			}
+		}
+	}
+
+	/** key was removed from the map */
+	void deleted(ByteBuffer key) {
+		entries.decrementAndGet();
+		store(at(ENTRIES), entries);
+		for (Prefix p : prefixes) {
+			if (p.matches(key)) {
+				p.count.decrementAndGet();
+				store(p.offset, p.count);
+			}
+		}
+	}
+
+	/** @return record after r in its bucket, or -1 */
+	private long next(long r) {
+		return table != null ? -1 : buf.getLong(r);
+	}
+
+	/** @return key of the record at r */
+	ByteBuffer key(long r) {
+		return buf.getBuffer(r + keyOffset);
+	}
+
+	@Override
+	public Set<ByteBuffer> keySet() {
+		return stream().map(x -> x.getKey()).collect(Collectors.toSet());
+	}
+
+	/**
+	 * @return offset of the pointer that refers to the record for key. If key
+	 *         is not present, the pointer holds -1 and is the end of the
+	 *         chain.
+	 */
+	long link(ByteBuffer key) {
+		int hash = hash(key);
+		long link = slot(bucket(hash, buckets()));
+		for (long r = buf.getLong(link); r >= 0; r = buf.getLong(r)) {
+			if (matches(r, hash, key)) {
+				return link;
+			}
+			link = r;
+		}
+		return link;
+	}
+
+	/** @return the record that the index slot or record next field at refers to */
+	long pointer(long at) {
+		return buf.getLong(at);
+	}
+
+	/** point the index slot or record next field at to record */
+	void pointer(long at, long record) {
+		buf.putLong(at, record);
+	}
+
+	@Override
+	public ByteBuffer put(ByteBuffer key, ByteBuffer value) {
+		long old;
+		if (table != null) {
+			int hash = hash(key);
+			old = table.put(hash, key, write(hash, key, value));
+		} else {
+			long record = write(key, value);
+			long link = link(key);
+			old = pointer(link);
+			if (old >= 0) {
+				// replacing old value in linked list
+				pointer(record, pointer(old));
+			}
+			pointer(link, record);
+		}
+		if (old >= 0) {
+			return release(old);
+		}
+		inserted(key);
+		grow();
+		return null;
+	}
+
+	/**
+	 * Put value, encoded by codec straight into its record rather than into a
+	 * buffer that is then copied. Unlike put(), the old value is not
+	 * returned.
+	 */
+	public <V> void put(ByteBuffer key, V value, BBCodec<V> codec) {
+		publish(key, stage(key, codec.encodedSize(value), b -> codec.encodeInto(value, b)));
+	}
+
+	/**
+	 * Link record, which holds key and was written by stage(), in place of
+	 * the record key has now, which is freed.
+	 */
+	void publish(ByteBuffer key, long record) {
+		long old;
+		renew(record);
+		pointer(record, -1);
+		if (table != null) {
+			old = table.put(hash(record), key, record);
+		} else {
+			long link = link(key);
+			old = pointer(link);
+			if (old >= 0) {
+				pointer(record, pointer(old));
+			}
+			pointer(link, record);
+		}
+		if (old >= 0) {
+			free(old);
+		} else {
+			inserted(key);
+			grow();
+		}
+	}
+
+	/**
+	 * Write a record for a WriteBatch. Until it is published it is marked as
+	 * free space, so that scan() skips it.
+	 *
+	 * @return offset of the record
+	 */
+	long stage(ByteBuffer key, ByteBuffer value) {
+		long record = write(key, value);
+		buf.putLong(record, FreeList.TAG | size(record));
+		return record;
+	}
+
+	/** stage a record whose value of size bytes is written by encoder */
+	long stage(ByteBuffer key, int size, Consumer<ByteBuffer> encoder) {
+		long bytes = size(key, size);
+		long record = allocate(bytes);
+		counted(bytes);
+		buf.putLong(record, -1);
+		if (keyOffset != Long.BYTES) {
+			buf.putInt(record + Long.BYTES, hash(key));
+		}
+		buf.putEncoded(buf.putBuffer(record + keyOffset, key) + record + keyOffset, size, encoder);
+		buf.putLong(record, FreeList.TAG | bytes);
+		return record;
+	}
+
+	@Override
+	public void putAll(Map<? extends ByteBuffer, ? extends ByteBuffer> m) {
+		load(m.entrySet().iterator());
+	}
+
+	/**
+	 * Put many entries. Each batch of entries is sorted by bucket, its records
+	 * are appended together at the end of data, and the records of a bucket
+	 * are linked in one walk of its chain. The index is grown for the whole
+	 * batch first. Into an empty map keys are not looked for. Free
+	 * space is not reused. A later entry replaces an earlier one with the
+	 * same key. Buffers must not change until load() returns.
+	 */
+	public void load(Iterator<? extends Map.Entry<? extends ByteBuffer, ? extends ByteBuffer>> source) {
+		Map<ByteBuffer, ByteBuffer> batch = new HashMap<>();
+		while (source.hasNext()) {
+			Map.Entry<? extends ByteBuffer, ? extends ByteBuffer> e = source.next();
+			batch.put(e.getKey(), e.getValue());
+			if (batch.size() == BATCH || !source.hasNext()) {
+				load(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	/** put a batch of distinct keys. @see #load(Iterator) */
+	void load(Map<ByteBuffer, ByteBuffer> batch) {
+		if (version == 1) {
+			batch.forEach(this::put);
+			return;
+		}
+		int n = batch.size();
+		boolean empty = size() == 0;
+		if (table != null) {
+			while (table.overloaded(entries.get() + n)) {
+				growTable();
+			}
+		} else {
+			// split before linking so that the new records are not copied.
+			// At most a batch of buckets too many if the keys were all present.
+			while (entries.get() + n > buckets() * LOAD_FACTOR && buckets() < Integer.MAX_VALUE) {
+				split();
+			}
+		}
+		ByteBuffer[] keys = new ByteBuffer[n];
+		ByteBuffer[] values = new ByteBuffer[n];
+		int[] hashes = new int[n];
+		// bucket<<32 | entry
+		long[] order = new long[n];
+		long b = buckets();
+		long total = 0;
+		int i = 0;
+		for (Map.Entry<ByteBuffer, ByteBuffer> e : batch.entrySet()) {
+			keys[i] = e.getKey();
+			values[i] = e.getValue();
+			hashes[i] = hash(keys[i]);
+			long bucket = table != null ? hashes[i] & (b - 1) : bucket(hashes[i], b);
+			order[i] = bucket << 32 | i;
+			total += size(keys[i], values[i]);
+			i++;
+		}
+		Arrays.sort(order);
+		length();
+		long[] records = new long[n];
+		long record = allocated(buf.allocate(total), total);
+		for (long o : order) {
+			i = (int) o;
+			records[i] = record(record, hashes[i], keys[i], values[i]);
+			record += size(keys[i], values[i]);
+		}
+		live.addAndGet(total);
+		store(at(LIVE), live);
+		long added = table != null ? loadTable(order, hashes, keys, records, empty)
+				: loadChains(order, hashes, keys, records, empty);
+		entries.addAndGet(added);
+		store(at(ENTRIES), entries);
+	}
+
+	/** @return number of keys added. @see #load(Map) */
+	private long loadTable(long[] order, int[] hashes, ByteBuffer[] keys, long[] records, boolean empty) {
+		long added = 0;
+		for (long o : order) {
+			int i = (int) o;
+			long old = -1;
+			if (empty) {
+				table.add(hashes[i], records[i]);
+			} else {
+				old = table.put(hashes[i], keys[i], records[i]);
+			}
+			if (old >= 0) {
+				free(old);
+			} else {
+				prefixed(keys[i]);
+				added++;
+			}
+		}
+		return added;
+	}
+
+	/** @return number of keys added. @see #load(Map) */
+	private long loadChains(long[] order, int[] hashes, ByteBuffer[] keys, long[] records, boolean empty) {
+		int n = order.length;
+		long added = 0;
+		boolean[] replaced = new boolean[n];
+		for (int g = 0, end; g < n; g = end) {
+			long bucket = order[g] >>> 32;
+			end = g + 1;
+			while (end < n && order[end] >>> 32 == bucket) {
+				end++;
+			}
+			long link = slot(bucket);
+			// replace records of keys already in the chain
+			for (long r = empty ? -1 : pointer(link); r >= 0; r = pointer(link)) {
+				for (int j = g; j < end; j++) {
+					int i = (int) order[j];
+					if (!replaced[i] && matches(r, hashes[i], keys[i])) {
+						pointer(records[i], pointer(r));
+						pointer(link, records[i]);
+						replaced[i] = true;
+						free(r);
+						r = records[i];
+						break;
+					}
+				}
+				link = r;
+			}
+			// and put the new keys at the front, in file order
+			long head = pointer(slot(bucket));
+			long first = head;
+			for (int j = end - 1; j >= g; j--) {
+				int i = (int) order[j];
+				if (!replaced[i]) {
+					pointer(records[i], first);
+					first = records[i];
+					prefixed(keys[i]);
+					added++;
+				}
+			}
+			if (first != head) {
+				pointer(slot(bucket), first);
+			}
+		}
+		return added;
+	}
+
+	@Override
+	public ByteBuffer remove(Object key) {
+		long old;
+		if (table != null) {
+			old = table.remove(hash((ByteBuffer) key), (ByteBuffer) key);
+		} else {
+			long link = link((ByteBuffer) key);
+			old = pointer(link);
+			if (old >= 0) {
+				pointer(link, pointer(old));
+			}
+		}
+		if (old < 0) {
+			return null;
+		}
+		deleted((ByteBuffer) key);
+		return release(old);
+	}
+
+	/**
+	 * Free an unlinked record.
+	 *
+	 * @return copy of its value
+	 */
+	ByteBuffer release(long record) {
+		ByteBuffer value = value(record);
+		ByteBuffer copy = (ByteBuffer) ByteBuffer.allocate(value.remaining()).put(value).flip();
+		free(record);
+		return copy;
+	}
+
+	/**
+	 * Move each record of bucket that fits in a free extent before it.
+	 *
+	 * @return bytes moved
+	 */
+	long relocate(long bucket) {
+		if (table != null) {
+			long r = table.get(bucket);
+			long copy = r < 0 ? -1 : free.allocate(size(r), r);
+			if (copy < 0) {
+				return 0;
+			}
+			allocated(copy, size(r));
+			write(copy, size(r), hash(r), key(r), value(r));
+			table.relocate(bucket, copy);
+			free(r);
+			return size(copy);
+		}
+		long moved = 0;
+		long link = slot(bucket);
+		for (long r = pointer(link); r >= 0; r = pointer(link)) {
+			long size = size(r);
+			long copy = free.allocate(size, r);
+			if (copy >= 0) {
+				allocated(copy, size);
+				write(copy, size, hash(r), key(r), value(r));
+				pointer(copy, pointer(r));
+				pointer(link, copy);
+				free(r);
+				moved += size;
+				r = copy;
+			}
+			link = r;
+		}
+		return moved;
+	}
+
+	/**
+	 * @return true if the record at r has key. Records whose hash or key
+	 *         length differ are rejected without looking at the key.
+	 */
+	private boolean matches(long r, int hash, ByteBuffer key) {
+		if (keyOffset != Long.BYTES && buf.getInt(r + Long.BYTES) != hash) {
+			return false;
+		}
+		return buf.getInt(r + keyOffset) == key.remaining() && key(r).equals(key);
+	}
+
+	/** add the extents that are freed but held back to skip */
+	void retired(Map<Long, Long> skip) {
+		for (long[] d : deferred) {
+			skip.put(d[0], d[0] + d[1]);
+		}
+	}
+
+	/**
+	 * Pass each entry to action in the order its record lies in the file, so
+	 * that the file is read sequentially. Free space and the indexes and
+	 * counts of every map of the file are skipped, as are records that are
+	 * replaced or removed but not yet free. Records of the other maps of a
+	 * file with namespaces are skipped by looking each key up, which reads
+	 * the index but not the other records. So are those of a read only map,
+	 * and of a file that was not closed cleanly until verify(). Files before
+	 * version 4 are read in bucket order.
+	 *
+	 * @param action
+	 *            called with key and value. Return false to stop.
+	 * @return false if action stopped the scan
+	 */
+	public boolean scan(BiPredicate<ByteBuffer, ByteBuffer> action) {
+		if (version < 4) {
+			// free space is not tagged
+			return stream().allMatch(e -> action.test(e.getKey(), e.getValue()));
+		}
+		// Records of namespaces are mixed together in the file. Records
+		// freed by a writer in another process, or not freed before a crash,
+		// look like any other.
+		boolean check = maps().size() > 1 || isReadOnly() || file().unswept;
+		long epoch = enter();
+		try {
+			return walk(r -> check && !linked(r) || action.test(export(key(r)), export(value(r))));
+		} finally {
+			exit(epoch);
+		}
+	}
+
+	/**
+	 * Pass the offset of each record in the data region to action, in file
+	 * order. Free space, space held back and the indexes and counts of every
+	 * map of the file are skipped.
+	 *
+	 * @return false if action stopped the walk
+	 */
+	private boolean walk(LongPredicate action) {
+		long end = length();
+		TreeMap<Long, Long> skip = skipped();
+		NavigableMap<Long, Long> none = Collections.emptyNavigableMap();
+		for (long r = seek(file().dataPointer, end, skip, none); r < end; r = seek(r + size(r), end, skip, none)) {
+			if (!action.test(r)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return offset of the first record at or after r, or end if there is
+	 *         none before it. Extents in skip or fresh, which may start before
+	 *         r, and free space are passed over.
+	 */
+	private long seek(long r, long end, TreeMap<Long, Long> skip, NavigableMap<Long, Long> fresh) {
+		while (r < end) {
+			Map.Entry<Long, Long> f = fresh.floorEntry(r);
+			Long skipEnd = skip.get(r);
+			if (f != null && f.getValue() > r) {
+				r = f.getValue();
+			} else if (skipEnd != null) {
+				r = skipEnd;
+			} else {
+				long w = buf.getLong(r);
+				if ((w & FreeList.TAG) == 0 || w == -1) {
+					return r;
+				}
+				r += w & ~FreeList.TAG;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * @return extents of the data region that hold no records: the indexes
+	 *         and counts of every map of the file, and space held back
+	 */
+	private TreeMap<Long, Long> skipped() {
+		TreeMap<Long, Long> skip = new TreeMap<>();
+		for (PersistentBufferMap m : maps()) {
+			m.structures(skip);
+			m.retired(skip);
+		}
+		return skip;
+	}
+
+	/** add the extents of the index and counts of this map in the data region to skip */
+	private void structures(TreeMap<Long, Long> skip) {
+		if (root != null) {
+			// header and initial index
+			skip.put(base, dataPointer);
+		}
+		for (int k = 1; k < MAX_SEGMENTS && segments[k] > 0; k++) {
+			skip.put(segments[k], segments[k] + Long.BYTES * ((long) indexSize << (k - 1)));
+		}
+		if (table != null) {
+			skip.put(table.table(), table.table() + Long.BYTES * table.capacity());
+		}
+		for (long record : new long[] { buf.getLong(at(PREFIXES)), buf.getLong(at(NAMESPACES)) }) {
+			if (record > 0) {
+				skip.put(record, record + buf.getLong(record));
+			}
+		}
+	}
+
+	/** Run task while no map of the file is written. */
+	void exclusiveFile(Runnable task) {
+		exclusive(maps(), 0, task);
+	}
+
+	/** run task holding the stripes of maps from i on */
+	private static void exclusive(List<PersistentBufferMap> maps, int i, Runnable task) {
+		if (i == maps.size()) {
+			task.run();
+		} else {
+			maps.get(i).exclusive(() -> exclusive(maps, i + 1, task));
+		}
+	}
+
+	/** @return the map of the file, this one unless it is a namespace */
+	private PersistentBufferMap file() {
+		return root != null ? root : this;
+	}
+
+	/** @return this file's map and its namespaces, always in the same order */
+	List<PersistentBufferMap> maps() {
+		PersistentBufferMap file = file();
+		List<PersistentBufferMap> maps = new ArrayList<>();
+		maps.add(file);
+		for (String name : file.namespaces()) {
+			maps.add(file.namespace(name));
+		}
+		return maps;
+	}
+
+	/** @return true if the record at r is the one linked for its key */
+	private boolean linked(long r) {
+		return find(key(r)) == r;
+	}
+
+	/** @return level of linear hashing, log2(buckets / indexSize) */
+	private int level(long buckets) {
+		return 63 - Long.numberOfLeadingZeros(buckets / indexSize);
+	}
+
+	/** @return the bucket that will be split next */
+	long nextSplit() {
+		long b = buckets();
+		return b - ((long) indexSize << level(b));
+	}
+
+	/**
+	 * @return true if there are too many entries per bucket. Version 1 files
+	 *         have no room in the header to grow.
+	 */
+	boolean overloaded() {
+		return version != 1 && entries.get() > buckets() * LOAD_FACTOR && buckets() < Integer.MAX_VALUE;
+	}
+
+	@Override
+	public int size() {
+		// read the file, which other instances sharing it may have changed
+		long n = version == 1 ? entries.get() : buf.getLong(at(ENTRIES));
+		return (int) Math.min(Integer.MAX_VALUE, n);
+	}
+
+	/**
+	 * @return the map as it is now, unchanged by later writes. Writers wait
+	 *         only while it is taken, not while it is read. Later writes tell
+	 *         it the space they take and the records they unlink, so it holds
+	 *         memory in proportion to the writes made while it is open.
+	 */
+	public Snapshot snapshot() {
+		Snapshot[] snapshot = new Snapshot[1];
+		exclusive(() -> snapshot[0] = new Snapshot());
+		return snapshot[0];
+	}
+
+	/**
+	 * A map as it was when snapshot() was called. Space freed since is not
+	 * reused until it is closed, so the records of that time stay as they
+	 * were. The record of a key is the one unlinked since then, if there is
+	 * one, otherwise the one linked now unless it is new. Buffers returned are
+	 * only good until the snapshot is closed.
+	 */
+	public class Snapshot extends AbstractMap<ByteBuffer, ByteBuffer> implements AutoCloseable {
+		/** end of data when taken. Records written since are past it or fresh. */
+		final private long end;
+
+		final private int size;
+
+		/** extents that held no records when taken. See skipped(). */
+		final private TreeMap<Long, Long> skip;
+
+		/** extents allocated since, start to end */
+		final private ConcurrentSkipListMap<Long, Long> fresh = new ConcurrentSkipListMap<>();
+
+		/** records unlinked since, by key */
+		final private Map<ByteBuffer, Long> gone = new ConcurrentHashMap<>();
+
+		final private AtomicBoolean closed = new AtomicBoolean();
+
+		/** called while no other thread writes the map */
+		Snapshot() {
+			snapshots.incrementAndGet();
+			end = length();
+			size = PersistentBufferMap.this.size();
+			skip = version < 4 ? null : skipped();
+			PersistentBufferMap file = file();
+			synchronized (file.namespaces) {
+				Snapshot[] views = Arrays.copyOf(file.views, file.views.length + 1);
+				views[views.length - 1] = this;
+				file.views = views;
+			}
+		}
+
+		/** Let the space freed since the snapshot was taken be reused. */
+		@Override
+		public void close() {
+			if (closed.compareAndSet(false, true)) {
+				PersistentBufferMap file = file();
+				synchronized (file.namespaces) {
+					file.views = Arrays.stream(file.views).filter(s -> s != this).toArray(Snapshot[]::new);
+				}
+				if (snapshots.decrementAndGet() == 0 && !committing && !buf.hasReaders()) {
+					freeDeferred();
+				}
+			}
+		}
+
+		/** note that map unlinked record */
+		void unlinked(PersistentBufferMap map, long record) {
+			if (map == PersistentBufferMap.this && !fresh(record)) {
+				gone.putIfAbsent(key(record), record);
+			}
+		}
+
+		/** @return true if r was allocated since the snapshot was taken */
+		private boolean fresh(long r) {
+			Map.Entry<Long, Long> f = fresh.floorEntry(r);
+			return f != null && f.getValue() > r;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return find(key) >= 0;
+		}
+
+		@Override
+		public Set<Map.Entry<ByteBuffer, ByteBuffer>> entrySet() {
+			return new AbstractSet<Map.Entry<ByteBuffer, ByteBuffer>>() {
+				@Override
+				public Iterator<Map.Entry<ByteBuffer, ByteBuffer>> iterator() {
+					PrimitiveIterator.OfLong records = records();
+					return new Iterator<Map.Entry<ByteBuffer, ByteBuffer>>() {
+						@Override
+						public boolean hasNext() {
+							return records.hasNext();
+						}
+
+						@Override
+						public Map.Entry<ByteBuffer, ByteBuffer> next() {
+							long r = records.nextLong();
+							return new AbstractMap.SimpleImmutableEntry<>(key(r), value(r));
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+			};
+		}
+
+		/**
+		 * @return the records of the snapshot, in file order. Free space of
+		 *         files before version 4 is not tagged, so their records are
+		 *         found through the index while writers wait.
+		 */
+		private PrimitiveIterator.OfLong records() {
+			if (version < 4) {
+				LongStream.Builder records = LongStream.builder();
+				exclusive(() -> {
+					for (long b = 0; b < buckets(); b++) {
+						for (long r = first(b); r >= 0; r = next(r)) {
+							if (!fresh(r)) {
+								records.add(r);
+							}
+						}
+					}
+					gone.values().forEach(records::add);
+				});
+				return records.build().iterator();
+			}
+			return new PrimitiveIterator.OfLong() {
+				private long r = seek(file().dataPointer);
+
+				@Override
+				public boolean hasNext() {
+					return r < end;
+				}
+
+				@Override
+				public long nextLong() {
+					if (r >= end) {
+						throw new NoSuchElementException();
+					}
+					long record = r;
+					r = seek(r + PersistentBufferMap.this.size(r));
+					return record;
+				}
+			};
+		}
+
+		/** @return the first record at or after r that is in the snapshot, or end */
+		private long seek(long r) {
+			r = PersistentBufferMap.this.seek(r, end, skip, fresh);
+			while (r < end && find(key(r)) != r) {
+				r = PersistentBufferMap.this.seek(r + PersistentBufferMap.this.size(r), end, skip, fresh);
+			}
+			return r;
+		}
+
+		/** @return record of key in the snapshot, or -1 */
+		private long find(Object key) {
+			if (!(key instanceof ByteBuffer)) {
+				return -1;
+			}
+			ByteBuffer k = (ByteBuffer) key;
+			return locked(k, () -> {
+				Long g = gone.get(k);
+				if (g != null) {
+					return g;
+				}
+				long r = PersistentBufferMap.this.find(k);
+				return r >= 0 && !fresh(r) ? r : -1;
+			});
+		}
+
+		@Override
+		public ByteBuffer get(Object key) {
+			long r = find(key);
+			return r < 0 ? null : value(r);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+
+	/**
+	 * Write the counters of ps to a new record in the data region, and free
+	 * the old one.
+	 */
+	private void writePrefixes(Prefix[] ps) {
+		if (version == 1) {
+			prefixes = ps;
+			return;
+		}
+		long old = buf.getLong(at(PREFIXES));
+		long bytes = 2 * Long.BYTES;
+		for (Prefix p : ps) {
+			bytes += align(Long.BYTES + Integer.BYTES + p.bytes.remaining());
+		}
+		long record = allocate(bytes);
+		buf.putLong(record, bytes);
+		buf.putLong(record + Long.BYTES, ps.length);
+		long at = record + 2 * Long.BYTES;
+		Prefix[] moved = new Prefix[ps.length];
+		for (int i = 0; i < ps.length; i++) {
+			moved[i] = new Prefix(ps[i].bytes, at, ps[i].count.get());
+			buf.putLong(at, ps[i].count.get());
+			at += align(Long.BYTES + buf.putBuffer(at + Long.BYTES, ps[i].bytes));
+		}
+		buf.putLong(at(PREFIXES), record);
+		prefixes = moved;
+		if (old > 0) {
+			reuse(old, buf.getLong(old));
+		}
+	}
+
+	/** @return counters of the prefixes recorded in the file */
+	private Prefix[] readPrefixes() {
+		long record = buf.getLong(at(PREFIXES));
+		if (record <= 0) {
+			return new Prefix[0];
+		}
+		Prefix[] ps = new Prefix[(int) buf.getLong(record + Long.BYTES)];
+		long at = record + 2 * Long.BYTES;
+		for (int i = 0; i < ps.length; i++) {
+			ByteBuffer b = buf.getBuffer(at + Long.BYTES);
+			ps[i] = new Prefix((ByteBuffer) ByteBuffer.allocate(b.remaining()).put(b).flip(), at, buf.getLong(at));
+			at += align(Long.BYTES + Integer.BYTES + ps[i].bytes.remaining());
+		}
+		return ps;
+	}
+
+	/** @return bytes used by a record of key and value */
+	private long size(ByteBuffer key, ByteBuffer value) {
+		return size(key, value.remaining());
+	}
+
+	/** @return bytes of a record of key and a value of valueSize bytes */
+	private long size(ByteBuffer key, int valueSize) {
+		return align(keyOffset + 2 * Integer.BYTES + key.remaining() + valueSize);
+	}
+
+	/** @return bytes used by the record at r */
+	private long size(long r) {
+		long v = valuePointer(r);
+		return align(v + Integer.BYTES + buf.getInt(v) - r);
+	}
+
+	/** @return offset of the index entry for bucket */
+	private long slot(long bucket) {
+		if (bucket < indexSize) {
+			return indexPointer + Long.BYTES * bucket;
+		}
+		int segment = 64 - Long.numberOfLeadingZeros(bucket / indexSize);
+		return segments[segment] + Long.BYTES * (bucket - ((long) indexSize << (segment - 1)));
+	}
+
+	/**
+	 * Split the next bucket. Entries that move to the new bucket are copied
+	 * into a new chain, which is linked before the bucket count changes. Then
+	 * they are unlinked from the old chain. Readers that miss a key because
+	 * of a concurrent split see the bucket count change and look again.
+	 */
+	void split() {
+		long b = buckets();
+		int level = level(b);
+		long low = (long) indexSize << level;
+		long p = b - low;
+		if (p == 0) {
+			// first split of this level. Allocate index for the new buckets.
+			long segment = allocate(Long.BYTES * low);
+			for (long i = 0; i < low; i++) {
+				buf.putLong(segment + Long.BYTES * i, -1);
+			}
+			long[] s = segments.clone();
+			s[level + 1] = segment;
+			segments = s;
+			buf.putLong(at(SEGMENTS) + Long.BYTES * (level + 1), segment);
+		}
+		long high = low << 1;
+		long tail = slot(b);
+		for (long r = pointer(slot(p)); r >= 0; r = pointer(r)) {
+			int hash = hash(r);
+			if (hash % high != p) {
+				long copy = write(hash, key(r), value(r));
+				pointer(tail, copy);
+				tail = copy;
+			}
+		}
+		buf.putLong(at(BUCKETS), b + 1);
+		buckets = b + 1;
+		long link = slot(p);
+		for (long r = pointer(link); r >= 0; r = pointer(link)) {
+			if (hash(r) % high != p) {
+				pointer(link, pointer(r));
+				free(r);
+			} else {
+				link = r;
+			}
+		}
+	}
+
+	/** Write counter to offset. The last write always holds the latest count. */
+	private void store(long offset, AtomicLong counter) {
+		if (version != 1) {
+			synchronized (counter) {
+				buf.putLong(offset, counter.get());
+			}
+		}
+	}
+
+	/**
+	 * @return live bytes, free bytes, and dead bytes (all bytes of data that
+	 *         are neither live nor index). Only maintained for version 2 and
+	 *         later files. Free and dead bytes of a namespace are those of the
+	 *         file.
+	 */
+	public Stats stats() {
+		if (root != null) {
+			Stats file = root.stats();
+			return new Stats(live.get(), file.free, file.dead);
+		}
+		long used = index() + live.get();
+		for (String name : namespaces()) {
+			PersistentBufferMap ns = namespace(name);
+			used += ns.dataPointer - ns.base + ns.index() + ns.live.get();
+		}
+		return new Stats(live.get(), free == null ? 0 : free.bytes(), length() - dataPointer - used);
+	}
+
+	/** @return bytes of index and counts in the data region */
+	private long index() {
+		long index = 0;
+		for (int k = 1; k < MAX_SEGMENTS && segments[k] > 0; k++) {
+			index += Long.BYTES * ((long) indexSize << (k - 1));
+		}
+		if (table != null && table.table() != indexPointer) {
+			index += Long.BYTES * table.capacity();
+		}
+		if (version != 1) {
+			for (long record : new long[] { buf.getLong(at(PREFIXES)), buf.getLong(at(NAMESPACES)) }) {
+				if (record > 0) {
+					index += buf.getLong(record);
+				}
+			}
+		}
+		return index;
+	}
+
+	/** counter of the keys that start with bytes */
+	private static class Prefix {
+		final ByteBuffer bytes;
+		/** offset of the count in the file */
+		final long offset;
+		final AtomicLong count;
+
+		Prefix(ByteBuffer bytes, long offset, long count) {
+			this.bytes = bytes;
+			this.offset = offset;
+			this.count = new AtomicLong(count);
+		}
+
+		boolean matches(ByteBuffer key) {
+			int n = bytes.remaining();
+			if (key.remaining() < n) {
+				return false;
+			}
+			for (int i = 0; i < n; i++) {
+				if (key.get(key.position() + i) != bytes.get(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/** space used by a map */
+	public static class Stats {
+		/** bytes of records that are in the map */
+		public final long live;
+		/** bytes on the free lists, ready for reuse */
+		public final long free;
+		/** bytes of records that are not in the map, including free */
+		public final long dead;
+
+		Stats(long live, long free, long dead) {
+			this.live = live;
+			this.free = free;
+			this.dead = dead;
+		}
+
+		@Override
+		public String toString() {
+			return "live:" + live + " free:" + free + " dead:" + dead;
+		}
+	}
+
+	/**
+	 * @return entries of the map. The stream may be made parallel, and splits
+	 *         by ranges of buckets.
+	 */
+	public Stream<java.util.Map.Entry<ByteBuffer, ByteBuffer>> stream() {
+		return StreamSupport.stream(new Buckets(0, buckets(), true), false);
+	}
+
+	/**
+	 * @return entries of the map, read a bucket at a time as stream() does.
+	 *         remove() removes the entry last returned without skipping any
+	 *         of the others.
+	 */
+	Cursor iterator() {
+		return new Cursor();
+	}
+
+	/**
+	 * Entries of the map, any of which may be removed while it is read by
+	 * remove(key, slot).
+	 */
+	class Cursor implements Iterator<Map.Entry<ByteBuffer, ByteBuffer>> {
+		final private Buckets buckets = new Buckets(0, buckets(), true);
+
+		private Map.Entry<ByteBuffer, ByteBuffer> next;
+
+		private long nextSlot;
+
+		private Map.Entry<ByteBuffer, ByteBuffer> last;
+
+		private long lastSlot;
+
+		@Override
+		public boolean hasNext() {
+			if (next == null && buckets.tryAdvance(e -> next = e)) {
+				nextSlot = buckets.next - 1;
+			}
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<ByteBuffer, ByteBuffer> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			last = next;
+			lastSlot = nextSlot;
+			next = null;
+			return last;
+		}
+
+		@Override
+		public void remove() {
+			if (last == null) {
+				throw new IllegalStateException();
+			}
+			remove(last.getKey(), lastSlot);
+		}
+
+		/**
+		 * Remove key, whose entry this returned from slot.
+		 *
+		 * @return true if entries returned after it will be returned again
+		 */
+		boolean remove(ByteBuffer key, long slot) {
+			PersistentBufferMap.this.remove(key);
+			last = null;
+			if (!buckets.removed(slot)) {
+				return false;
+			}
+			// it may have moved, and is read again
+			next = null;
+			return true;
+		}
+
+		/** @return slot, for remove(key, slot), of the entry last returned */
+		long slot() {
+			return lastSlot;
+		}
+	}
+
+	/**
+	 * Entries of a range of buckets. Each bucket is read in one go, so that
+	 * nothing is held between calls.
+	 */
+	private class Buckets implements Spliterator<Map.Entry<ByteBuffer, ByteBuffer>> {
+		/** next bucket to read */
+		private long next;
+
+		final private long end;
+
+		/** true if this covers the whole map, and nothing was split off */
+		private boolean whole;
+
+		/** entries passed on */
+		private long done;
+
+		/** key of the entry read from the first slot, which can shift into the last */
+		private ByteBuffer wrapped;
+
+		/** entries of the last bucket read, not yet passed on */
+		final private ArrayDeque<Map.Entry<ByteBuffer, ByteBuffer>> pending = new ArrayDeque<>();
+
+		Buckets(long next, long end, boolean whole) {
+			this.next = next;
+			this.end = end;
+			this.whole = whole;
+		}
+
+		@Override
+		public int characteristics() {
+			int c = DISTINCT | NONNULL;
+			if (PersistentBufferMap.this instanceof ConcurrentMap) {
+				return c | CONCURRENT;
+			}
+			return whole ? c | SIZED : c;
+		}
+
+		@Override
+		public long estimateSize() {
+			if (whole) {
+				return Math.max(0, size() - done);
+			}
+			long b = buckets();
+			return pending.size() + (b == 0 ? 0 : entries.get() * (end - next) / b);
+		}
+
+		@Override
+		public void forEachRemaining(Consumer<? super Map.Entry<ByteBuffer, ByteBuffer>> action) {
+			do {
+				for (Map.Entry<ByteBuffer, ByteBuffer> e = pending.poll(); e != null; e = pending.poll()) {
+					done++;
+					action.accept(e);
+				}
+			} while (read());
+		}
+
+		/** read the next bucket into pending. @return false at the end */
+		private boolean read() {
+			if (next >= end) {
+				return false;
+			}
+			long epoch = enter();
+			try {
+				for (long r = first(next); r >= 0; r = next(r)) {
+					ByteBuffer key = export(key(r));
+					if (table != null && next == end - 1 && key.equals(wrapped)) {
+						// passed on from the first slot before a removal shifted it
+						continue;
+					}
+					pending.add(new AbstractMap.SimpleEntry<>(key, export(value(r))));
+				}
+				if (table != null && next == 0 && !pending.isEmpty()) {
+					wrapped = pending.peek().getKey();
+				}
+			} finally {
+				exit(epoch);
+			}
+			next++;
+			return true;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super Map.Entry<ByteBuffer, ByteBuffer>> action) {
+			while (pending.isEmpty()) {
+				if (!read()) {
+					return false;
+				}
+			}
+			done++;
+			action.accept(pending.poll());
+			return true;
+		}
+
+		/**
+		 * The entry read from slot was removed. A Robin Hood table shifts the
+		 * entries after it back a slot, so reading resumes at that slot, and
+		 * entries passed on after the removed one are passed on again.
+		 *
+		 * @return true if reading resumes at slot
+		 */
+		boolean removed(long slot) {
+			if (table == null) {
+				return false;
+			}
+			pending.clear();
+			next = slot;
+			return true;
+		}
+
+		@Override
+		public Spliterator<Map.Entry<ByteBuffer, ByteBuffer>> trySplit() {
+			long mid = (next + end) >>> 1;
+			if (mid <= next) {
+				return null;
+			}
+			whole = false;
+			Buckets prefix = new Buckets(next, mid, false);
+			next = mid;
+			// entries already read stay with this spliterator
+			return prefix;
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("version:" + buf.getInt(0) + "\n");
+		sb.append("size:" + buckets() + "\n");
+		sb.append("index:\n");
+		for (int i = 0; i < buckets(); i++) {
+			sb.append("  ").append(i + ":" + first(i) + "\n");
+		}
+		sb.append("data:\n");
+		for (int i = 0; i < buckets(); i++) {
+			long listId = first(i);
+			sb.append("  ").append(i).append("->");
+			if (listId >= 0) {
+				sb.append(toString(listId));
+			}
+			sb.append("\n");
+		}
+		sb.append("done");
+		return sb.toString();
+		// return entrySet().toString().replaceAll(",", ",\n");
+	}
+
+	private String toString(ByteBuffer buffer) {
+		String str = "bbb:" + buffer.limit() + ":";
+		for (int i = buffer.limit() - 1; i >= 0; i--) {
+			str += String.format(" %02X", buffer.get());
+		}
+		return str;
+	}
+
+	// toString(list Id)
+	private Object toString(long id) {
+		long next = next(id);
+		String str = "list:" + id + ": \n\t" + toString(key(id)) + "\n\t\t" + toString(value(id));
+		if (next >= 0) {
+			str += "->" + toString(next) + "\n";
+		}
+		return str;
+	}
+
+	/** @return value of the record at r */
+	ByteBuffer value(long r) {
+		return buf.getBuffer(valuePointer(r));
+	}
+
+	/** @return offset of the length prefixed value of the record at r */
+	private long valuePointer(long r) {
+		long k = r + keyOffset;
+		return k + Integer.BYTES + buf.getInt(k);
+	}
+
+	/**
+	 * Append a new record that is not yet linked into any chain.
+	 *
+	 * @return offset of the record
+	 */
+	long write(ByteBuffer key, ByteBuffer value) {
+		return write(hash(key), key, value);
+	}
+
+	private long write(int hash, ByteBuffer key, ByteBuffer value) {
+		long size = size(key, value);
+		return write(allocate(size), size, hash, key, value);
+	}
+
+	/** write an unlinked record of size bytes at record */
+	private long write(long record, long size, int hash, ByteBuffer key, ByteBuffer value) {
+		counted(size);
+		return record(record, hash, key, value);
+	}
+
+	/** count size bytes written as live */
+	private void counted(long size) {
+		if (free != null) {
+			live.addAndGet(size);
+			store(at(LIVE), live);
+		}
+	}
+
+	/** write an unlinked record at record, without counting its bytes */
+	private long record(long record, int hash, ByteBuffer key, ByteBuffer value) {
+		buf.putLong(record, -1);
+		if (keyOffset != Long.BYTES) {
+			buf.putInt(record + Long.BYTES, hash);
+		}
+		buf.putBuffer(buf.putBuffer(record + keyOffset, key) + record + keyOffset, value);
+		return record;
+	}
+
+	/**
+	 * Count the entries, the keys with each prefix and the live bytes again,
+	 * and correct the counts kept in the file. For files that were not closed
+	 * cleanly. Records that no map of the file links and that were not freed,
+	 * as when the process stopped while a snapshot was open, are freed.
+	 *
+	 * @return true if the counts were correct and no such records were found
+	 */
+	public boolean verify() {
+		boolean[] ok = { true };
+		exclusive(() -> ok[0] = recount());
+		if (root == null && version >= 4 && !isReadOnly()) {
+			exclusiveFile(() -> ok[0] &= sweep());
+		}
+		return ok[0];
+	}
+
+	/** @see #verify() */
+	private boolean sweep() {
+		List<PersistentBufferMap> maps = maps();
+		List<long[]> lost = new ArrayList<>();
+		walk(r -> {
+			if (maps.stream().noneMatch(m -> m.linked(r))) {
+				lost.add(new long[] { r, size(r) });
+			}
+			return true;
+		});
+		for (long[] l : lost) {
+			reuse(l[0], l[1]);
+		}
+		unswept = false;
+		return lost.isEmpty();
+	}
+
+	/** @see #verify() */
+	private boolean recount() {
+		long n = 0;
+		long bytes = 0;
+		long[] counts = new long[prefixes.length];
+		for (long i = 0; i < buckets(); i++) {
+			for (long r = first(i); r >= 0; r = next(r)) {
+				n++;
+				bytes += size(r);
+				ByteBuffer key = key(r);
+				for (int p = 0; p < counts.length; p++) {
+					if (prefixes[p].matches(key)) {
+						counts[p]++;
+					}
+				}
+			}
+		}
+		boolean ok = check(at(ENTRIES), entries, n);
+		if (free != null) {
+			ok &= check(at(LIVE), live, bytes);
+		}
+		for (int p = 0; p < counts.length; p++) {
+			ok &= check(prefixes[p].offset, prefixes[p].count, counts[p]);
+		}
+		return ok;
+	}
+
+	/** set counter and the file to count. @return true if they already were. */
+	private boolean check(long offset, AtomicLong counter, long count) {
+		boolean ok = counter.get() == count && (version == 1 || buf.getLong(offset) == count);
+		counter.set(count);
+		store(offset, counter);
+		return ok;
 	}
 
 	@Override
@@ -4,14 +4,27 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -80,6 +93,1136 @@ public class PersistentBufferMapTest {
 		}
 	}
 
+	private static ByteBuffer longBuffer(long l) {
+		return (ByteBuffer) ByteBuffer.allocate(Long.BYTES).putLong(l).flip();
+	}
+
+	@Test
+	public void concurrentReaders() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		int count = 10000;
+		try (PersistentBufferMap map = new PersistentBufferMap(f, count / 10)) {
+			for (long i = 0; i < count; i++) {
+				map.put(longBuffer(i), longBuffer(-i));
+			}
+			ExecutorService pool = Executors.newFixedThreadPool(8);
+			try {
+				List<Future<Boolean>> results = IntStream.range(0, 8)
+						.mapToObj(t -> pool.submit(() -> {
+							Random rand = new Random(t);
+							for (int i = 0; i < count * 10; i++) {
+								long k = rand.nextInt(count);
+								if (map.get(longBuffer(k)).getLong(0) != -k || !map.containsKey(longBuffer(k))) {
+									return false;
+								}
+							}
+							return map.stream().count() == count;
+						}))
+						.collect(Collectors.toList());
+				for (Future<Boolean> result : results) {
+					Assert.assertTrue(result.get());
+				}
+			} finally {
+				pool.shutdown();
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void reopenAndAppend() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		try {
+			try (PersistentBufferMap map = new PersistentBufferMap(f, 3)) {
+				for (long i = 0; i < 10; i++) {
+					map.put(longBuffer(i), longBuffer(-i));
+				}
+			}
+			try (PersistentBufferMap map = new PersistentBufferMap(f, -1)) {
+				for (long i = 10; i < 20; i++) {
+					map.put(longBuffer(i), longBuffer(-i));
+				}
+			}
+			try (PersistentBufferMap map = new PersistentBufferMap(f, -1)) {
+				Assert.assertEquals(20, map.size());
+				for (long i = 0; i < 20; i++) {
+					assertEquals(-i, map.get(longBuffer(i)).getLong());
+				}
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void growth() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		int count = 20000;
+		try {
+			try (PersistentBufferMap map = new PersistentBufferMap(f, 1)) {
+				for (long i = 0; i < count; i++) {
+					map.put(longBuffer(i), longBuffer(-i));
+					if (i % 1000 == 0) {
+						for (long j = 0; j <= i; j++) {
+							assertEquals(-j, map.get(longBuffer(j)).getLong());
+						}
+					}
+				}
+				Assert.assertTrue(map.buckets() >= count);
+			}
+			try (PersistentBufferMap map = new PersistentBufferMap(f, -1)) {
+				Assert.assertTrue(map.buckets() >= count);
+				Assert.assertEquals(count, map.size());
+				for (long i = 0; i < count; i++) {
+					assertEquals(-i, map.remove(longBuffer(i)).getLong());
+				}
+				Assert.assertTrue(map.isEmpty());
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void reuse() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		try {
+			long length;
+			try (PersistentBufferMap map = new PersistentBufferMap(f, 100)) {
+				for (long i = 0; i < 100; i++) {
+					map.put(longBuffer(i), longBuffer(i));
+				}
+				PersistentBufferMap.Stats stats = map.stats();
+				Assert.assertEquals(0, stats.free);
+				Assert.assertEquals(0, stats.dead);
+				length = stats.live;
+				for (int n = 0; n < 10; n++) {
+					for (long i = 0; i < 100; i++) {
+						assertEquals(n == 0 ? i : i + n - 1, map.put(longBuffer(i), longBuffer(i + n)).getLong());
+					}
+				}
+				stats = map.stats();
+				Assert.assertEquals(length, stats.live);
+				// one record per entry is the most that can be waiting for reuse
+				Assert.assertTrue(stats.toString(), stats.dead <= length);
+				for (long i = 0; i < 50; i++) {
+					map.remove(longBuffer(i));
+				}
+			}
+			try (PersistentBufferMap map = new PersistentBufferMap(f, -1)) {
+				PersistentBufferMap.Stats stats = map.stats();
+				Assert.assertEquals(length / 2, stats.live);
+				Assert.assertTrue(stats.toString(), stats.free >= length / 2);
+				for (long i = 0; i < 50; i++) {
+					map.put(longBuffer(i), longBuffer(-i));
+				}
+				Assert.assertEquals(length, map.stats().live);
+				for (long i = 0; i < 100; i++) {
+					assertEquals(i < 50 ? -i : i + 9, map.get(longBuffer(i)).getLong());
+				}
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void compact() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		try {
+			try (PersistentBufferMap map = new PersistentBufferMap(f, 100)) {
+				for (long i = 0; i < 1000; i++) {
+					map.put(longBuffer(i), longBuffer(i));
+				}
+				// free the early records and leave the late ones at the end
+				for (long i = 0; i < 500; i++) {
+					map.remove(longBuffer(i));
+				}
+				PersistentBufferMap.Stats before = map.stats();
+				Assert.assertTrue(map.compact(0) > 0);
+				PersistentBufferMap.Stats after = map.stats();
+				Assert.assertEquals(before.live, after.live);
+				Assert.assertTrue(after.toString(), after.dead < before.dead);
+				for (long i = 500; i < 1000; i++) {
+					assertEquals(i, map.get(longBuffer(i)).getLong());
+				}
+			}
+			try (PersistentBufferMap map = new PersistentBufferMap(f, -1)) {
+				Assert.assertEquals(500, map.size());
+				for (long i = 0; i < 1000; i++) {
+					if (i < 500) {
+						Assert.assertNull(map.get(longBuffer(i)));
+					} else {
+						assertEquals(i, map.get(longBuffer(i)).getLong());
+					}
+				}
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void robinHood() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		int count = 20000;
+		try {
+			try (PersistentBufferMap map = new PersistentBufferMap(f, 1, PersistentBufferMap.Engine.ROBIN_HOOD)) {
+				for (long i = 0; i < count; i++) {
+					map.put(longBuffer(i), longBuffer(-i));
+					if (i % 1000 == 0) {
+						for (long j = 0; j <= i; j++) {
+							assertEquals(-j, map.get(longBuffer(j)).getLong());
+						}
+					}
+				}
+				assertNull(map.get(longBuffer(-1)));
+				assertEquals(count, map.size());
+			}
+			try (PersistentBufferMap map = new PersistentBufferMap(f, -1)) {
+				assertEquals(PersistentBufferMap.Engine.ROBIN_HOOD, map.engine());
+				assertEquals(count, map.stream().count());
+				for (long i = 0; i < count; i += 2) {
+					assertEquals(-i, map.remove(longBuffer(i)).getLong());
+				}
+				assertEquals(-1, map.put(longBuffer(1), longBuffer(1)).getLong());
+				map.compact(0);
+				for (long i = 0; i < count; i++) {
+					if (i % 2 == 0) {
+						assertNull(map.get(longBuffer(i)));
+					} else {
+						assertEquals(i == 1 ? 1 : -i, map.get(longBuffer(i)).getLong());
+					}
+				}
+				assertEquals(count / 2, map.size());
+				// the table it grows out of is not reused while a snapshot may read it
+				try (PersistentBufferMap.Snapshot snapshot = map.snapshot()) {
+					long free = map.stats().free;
+					for (long i = count; i < 4 * count; i++) {
+						map.put(longBuffer(i), longBuffer(-i));
+						if (i % 1000 == 0) {
+							// nothing is freed but what aligning a new table leaves over
+							Assert.assertTrue(map.stats().free <= free + 2 * RobinHoodIndex.LINE);
+							free = map.stats().free;
+						}
+					}
+					assertEquals(count / 2, snapshot.size());
+					assertEquals(longBuffer(-3), snapshot.get(longBuffer(3)));
+				}
+				Assert.assertTrue(map.stats().free > 0);
+				Assert.assertTrue(map.verify());
+			}
+			try {
+				new ConcurrentPersistentBufferMap(f, -1).close();
+				Assert.fail("Robin Hood maps are not shared");
+			} catch (IllegalStateException e) {
+				// expected
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	/** keys that differ only where SAMPLED does not look */
+	@Test
+	public void hashDistribution() throws Exception {
+		for (KeyHash keyHash : KeyHash.values()) {
+			File f = File.createTempFile("test.", ".mapdb");
+			try (PersistentBufferMap map = new PersistentBufferMap(f, 100, PersistentBufferMap.Engine.CHAINED,
+					keyHash)) {
+				for (short i = 0; i < 1000; i++) {
+					ByteBuffer key = ByteBuffer.allocate(1024);
+					key.putShort(1020, i);
+					map.put(key, longBuffer(i));
+				}
+				long[] histogram = map.histogram();
+				System.err.println(keyHash + ":" + Arrays.toString(histogram));
+				assertEquals(keyHash, map.keyHash());
+				if (keyHash == KeyHash.SAMPLED) {
+					assertEquals(1000, histogram.length - 1);
+				} else {
+					Assert.assertTrue(histogram.length < 10);
+				}
+			}
+			try (PersistentBufferMap map = new PersistentBufferMap(f, -1)) {
+				assertEquals(keyHash, map.keyHash());
+				for (short i = 0; i < 1000; i++) {
+					ByteBuffer key = ByteBuffer.allocate(1024);
+					key.putShort(1020, i);
+					assertEquals(i, map.get(key).getLong());
+				}
+			} finally {
+				f.delete();
+			}
+		}
+	}
+
+	@Test
+	public void xx64() {
+		ByteBuffer big = ByteBuffer.allocate(100);
+		ByteBuffer little = ByteBuffer.allocate(100).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+		new Random(1).nextBytes(big.array());
+		little.put(big.array());
+		for (int length = 1; length < 100; length++) {
+			big.limit(length);
+			little.position(0).limit(length);
+			assertEquals(KeyHash.XX64.hash(big), KeyHash.XX64.hash(little));
+			Assert.assertNotEquals(KeyHash.XX64.hash(big), KeyHash.XX64.hash((ByteBuffer) big.duplicate().position(1)));
+		}
+	}
+
+	@Test
+	public void counts() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		try {
+			try (PersistentBufferMap map = new PersistentBufferMap(f, 10)) {
+				StringMap red = new StringMap(map, "red");
+				StringMap blue = new StringMap(map, "blue");
+				for (int i = 0; i < 100; i++) {
+					red.put("r" + i, "x");
+					if (i % 2 == 0) {
+						blue.put("b" + i, "y");
+					}
+				}
+				assertEquals(100, red.size());
+				assertEquals(50, blue.size());
+				// each name is a namespace of its own
+				assertEquals(0, map.size());
+				assertEquals(50, map.namespace("blue").size());
+				for (int i = 0; i < 10; i++) {
+					blue.remove("b" + 2 * i);
+					red.put("r" + i, "z");
+				}
+				assertEquals(100, red.size());
+				assertEquals(40, blue.size());
+				Assert.assertTrue(map.verify());
+			}
+			// lose the entry count, as a crash might
+			try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+				raf.seek(Long.BYTES);
+				raf.writeLong(12345);
+			}
+			try (PersistentBufferMap map = new PersistentBufferMap(f, -1)) {
+				StringMap red = new StringMap(map, "red");
+				StringMap blue = new StringMap(map, "blue");
+				assertEquals(12345, map.size());
+				Assert.assertFalse(map.verify());
+				assertEquals(0, map.size());
+				Assert.assertTrue(map.verify());
+				assertEquals(100, red.size());
+				assertEquals(40, blue.size());
+				red.clear();
+				Assert.assertTrue(red.isEmpty());
+				assertEquals(40, blue.size());
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void parallelStream() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		int count = 20000;
+		try (PersistentBufferMap map = new PersistentBufferMap(f, count / 4)) {
+			for (long i = 0; i < count; i++) {
+				map.put(longBuffer(i), longBuffer(-i));
+			}
+			Spliterator<Map.Entry<ByteBuffer, ByteBuffer>> s = map.stream().spliterator();
+			assertEquals(count, s.getExactSizeIfKnown());
+			Assert.assertNotNull(s.trySplit());
+			assertEquals(count, map.stream().parallel()
+					.filter(e -> e.getKey().getLong(0) == -e.getValue().getLong(0))
+					.count());
+			assertEquals((long) count * (count - 1) / 2, map.stream().parallel()
+					.mapToLong(e -> e.getKey().getLong(0))
+					.sum());
+			assertEquals(count, map.keySet().size());
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void scan() throws Exception {
+		for (PersistentBufferMap.Engine engine : PersistentBufferMap.Engine.values()) {
+			File f = File.createTempFile("test.", ".mapdb");
+			try (PersistentBufferMap map = new PersistentBufferMap(f, 10, engine)) {
+				Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+				Random rand = new Random(1);
+				for (int i = 0; i < 20000; i++) {
+					ByteBuffer key = longBuffer(rand.nextInt(2000));
+					if (rand.nextInt(4) == 0) {
+						map.remove(key);
+						expected.remove(key);
+					} else {
+						// values of many sizes leave gaps of many sizes
+						ByteBuffer value = ByteBuffer.allocate(rand.nextInt(40));
+						rand.nextBytes(value.array());
+						map.put(key, value);
+						expected.put(key, value);
+					}
+				}
+				map.compact(0);
+				Map<ByteBuffer, ByteBuffer> scanned = new HashMap<>();
+				Assert.assertTrue(map.scan((k, v) -> scanned.put(k, v) == null));
+				assertEquals(expected, scanned);
+				Assert.assertTrue(map.containsValue(expected.values().iterator().next()));
+				Assert.assertFalse(map.containsValue(ByteBuffer.allocate(41)));
+				int[] calls = { 0 };
+				Assert.assertFalse(map.scan((k, v) -> ++calls[0] < 10));
+				assertEquals(10, calls[0]);
+			} finally {
+				f.delete();
+			}
+		}
+	}
+
+	@Test
+	public void load() throws Exception {
+		for (PersistentBufferMap.Engine engine : PersistentBufferMap.Engine.values()) {
+			File f = File.createTempFile("test.", ".mapdb");
+			try (PersistentBufferMap map = new PersistentBufferMap(f, 10, engine)) {
+				Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+				Random rand = new Random(2);
+				// into an empty map, then over it
+				for (int pass = 0; pass < 2; pass++) {
+					List<Map.Entry<ByteBuffer, ByteBuffer>> feed = new ArrayList<>();
+					for (int i = 0; i < 100000; i++) {
+						ByteBuffer key = longBuffer(rand.nextInt(150000));
+						ByteBuffer value = longBuffer(rand.nextLong());
+						feed.add(new AbstractMap.SimpleEntry<>(key, value));
+						expected.put(key, value);
+					}
+					map.load(feed.iterator());
+					assertEquals(expected.size(), map.size());
+					Assert.assertTrue(map.verify());
+				}
+				for (Map.Entry<ByteBuffer, ByteBuffer> e : expected.entrySet()) {
+					assertEquals(e.getValue(), map.get(e.getKey()));
+				}
+				Assert.assertTrue(map.histogram().length < 20);
+			} finally {
+				f.delete();
+			}
+		}
+	}
+
+	@Test
+	public void writeBatch() throws Exception {
+		for (PersistentBufferMap.Engine engine : PersistentBufferMap.Engine.values()) {
+			File f = File.createTempFile("test.", ".mapdb");
+			try {
+				try (PersistentBufferMap map = new PersistentBufferMap(f, 10, engine)) {
+					for (long i = 0; i < 100; i++) {
+						map.put(longBuffer(i), longBuffer(i));
+					}
+					WriteBatch batch = map.batch();
+					for (long i = 50; i < 150; i++) {
+						batch.put(longBuffer(i), longBuffer(-i));
+					}
+					batch.remove(longBuffer(0)).remove(longBuffer(149));
+					assertEquals(longBuffer(50), map.get(longBuffer(50)));
+					assertEquals(100, map.size());
+					assertEquals(101, batch.size());
+					batch.commit();
+					assertEquals(148, map.size());
+					assertNull(map.get(longBuffer(0)));
+					assertEquals(longBuffer(-148), map.get(longBuffer(148)));
+					Map<ByteBuffer, ByteBuffer> scanned = new HashMap<>();
+					map.scan((k, v) -> scanned.put(k, v) == null);
+					assertEquals(new HashMap<>(map), scanned);
+					try {
+						batch.commit();
+						Assert.fail("committed twice");
+					} catch (IllegalStateException e) {
+						// expected
+					}
+				}
+				// crash part way through applying a batch
+				int[] applied = { 0 };
+				PersistentBufferMap crashing = new PersistentBufferMap(f, -1) {
+					@Override
+					void publish(ByteBuffer key, long record) {
+						if (applied[0]++ == 10) {
+							throw new IllegalStateException("crash");
+						}
+						super.publish(key, record);
+					}
+				};
+				WriteBatch batch = crashing.batch();
+				for (long i = 0; i < 200; i++) {
+					batch.put(longBuffer(i), longBuffer(i * 2));
+				}
+				try {
+					batch.commit();
+					Assert.fail("no crash");
+				} catch (IllegalStateException e) {
+					// expected
+				}
+				crashing.close();
+				try (PersistentBufferMap map = new PersistentBufferMap(f, -1)) {
+					assertEquals(200, map.size());
+					for (long i = 0; i < 200; i++) {
+						assertEquals(longBuffer(i * 2), map.get(longBuffer(i)));
+					}
+					Assert.assertTrue(map.verify());
+				}
+			} finally {
+				f.delete();
+			}
+		}
+	}
+
+	@Test
+	public void durability() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		try {
+			long n = 0;
+			for (PersistentBufferMap.Durability d : PersistentBufferMap.Durability.values()) {
+				try (PersistentBufferMap map = new PersistentBufferMap(f, n == 0 ? 10 : -1)) {
+					map.durability(d, 5);
+					assertEquals(d, map.durability());
+					for (int i = 0; i < 100; i++, n++) {
+						map.put(longBuffer(n), longBuffer(n));
+					}
+					map.batch().put(longBuffer(-1), longBuffer(n)).commit();
+					Thread.sleep(20);
+				}
+			}
+			try (PersistentBufferMap map = new PersistentBufferMap(f, -1)) {
+				assertEquals(n + 1, map.size());
+				assertEquals(longBuffer(n), map.get(longBuffer(-1)));
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void fileGrowth() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		try {
+			for (int pass = 0; pass < 3; pass++) {
+				try (PersistentBufferMap map = new PersistentBufferMap(f, pass == 0 ? 100 : -1)) {
+					map.growth(Storage.Growth.chunk(1 << 20));
+					for (long i = 0; i < 1000; i++) {
+						map.put(longBuffer(pass * 1000 + i), longBuffer(i));
+					}
+				}
+				// cut to the end of data on close
+				Assert.assertTrue(f.length() < 200000);
+			}
+			try (PersistentBufferMap map = new PersistentBufferMap(f, -1)) {
+				assertEquals(3000, map.size());
+				assertEquals(longBuffer(999), map.get(longBuffer(2999)));
+				Assert.assertTrue(map.verify());
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	/** pages are written back and read again through a cache smaller than the map */
+	@Test
+	public void channelStorage() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		try {
+			Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+			Random r = new Random(17);
+			for (int pass = 0; pass < 2; pass++) {
+				try (PersistentBufferMap map = new PersistentBufferMap(new ChannelStorage(f, 1 << 18),
+						pass == 0 ? 10 : -1, PersistentBufferMap.Engine.CHAINED, KeyHash.DEFAULT)) {
+					assertEquals(expected, map);
+					// the file is locked against a second storage
+					try {
+						new ChannelStorage(f).close(-1);
+						Assert.fail();
+					} catch (IllegalStateException e) {
+						// expected
+					}
+					try {
+						BBBuffer.create(f).close();
+						Assert.fail();
+					} catch (IllegalStateException e) {
+						// expected
+					}
+					for (int i = 0; i < 2000; i++) {
+						ByteBuffer key = longBuffer(r.nextInt(1000));
+						if (r.nextInt(4) == 0) {
+							assertEquals(expected.remove(key), map.remove(key));
+						} else {
+							// some values span pages
+							byte[] value = new byte[r.nextInt(10) == 0 ? 100000 : r.nextInt(100)];
+							r.nextBytes(value);
+							map.put(key, ByteBuffer.wrap(value));
+							expected.put(key, ByteBuffer.wrap(value));
+						}
+					}
+					assertEquals(expected, map);
+					Assert.assertTrue(map.verify());
+				}
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	/** numbers across a page boundary are copied, and the rest read in place */
+	@Test
+	public void channelStoragePages() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		try {
+			ChannelStorage storage = new ChannelStorage(f, 1 << 16);
+			for (long offset = (1 << 16) - 12; offset < (1 << 16) + 4; offset++) {
+				storage.putLong(offset, offset);
+				assertEquals(offset, storage.getLong(offset));
+				storage.putInt(offset, (int) -offset);
+				assertEquals((int) -offset, storage.getInt(offset));
+			}
+			// page 0 is written back when page 256 takes its place in the cache
+			storage.putInt(0, 7);
+			storage.putLong(1 << 24, 1);
+			assertEquals(7, storage.getInt(0));
+			storage.close(-1);
+			storage = new ChannelStorage(f);
+			assertEquals(7, storage.getInt(0));
+			assertEquals((int) -((1 << 16) + 3), storage.getInt((1 << 16) + 3));
+			assertEquals(1, storage.getLong(1 << 24));
+			storage.close(-1);
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void memoryStorage() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		try {
+			MemoryStorage storage = new MemoryStorage();
+			try (PersistentBufferMap map = new PersistentBufferMap(storage, 10)) {
+				for (long i = 0; i < 10000; i++) {
+					map.put(longBuffer(i), longBuffer(-i));
+				}
+				// records cross from one chunk to the next
+				map.put(longBuffer(-1), ByteBuffer.wrap(new byte[3 << 20]));
+				Assert.assertTrue(map.verify());
+				Assert.assertEquals(0, f.length());
+				storage.saveOnClose(f);
+			}
+			try (PersistentBufferMap map = new PersistentBufferMap(f, -1)) {
+				Assert.assertEquals(10001, map.size());
+				assertEquals(-9999, map.get(longBuffer(9999)).getLong());
+				map.remove(longBuffer(-1));
+			}
+			try (PersistentBufferMap map = new PersistentBufferMap(MemoryStorage.load(f), -1)) {
+				Assert.assertEquals(10000, map.size());
+				for (long i = 0; i < 10000; i++) {
+					assertEquals(-i, map.get(longBuffer(i)).getLong());
+				}
+			}
+		} finally {
+			f.delete();
+		}
+		// chunks never written read as zeros
+		MemoryStorage storage = new MemoryStorage();
+		storage.putLong(5 << 20, 7);
+		Assert.assertEquals(0, storage.getLong(3 << 20));
+		Assert.assertEquals(0, storage.getBuffer(1 << 20).remaining());
+		Assert.assertEquals(7, storage.getLong(5 << 20));
+	}
+
+	@Test
+	public void readOnly() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		try {
+			try (PersistentBufferMap writer = new PersistentBufferMap(f, 10)) {
+				for (long i = 0; i < 100; i++) {
+					writer.put(longBuffer(i), longBuffer(i));
+				}
+				try (PersistentBufferMap reader = PersistentBufferMap.readOnly(f)) {
+					assertEquals(100, reader.size());
+					// splits, file growth and replaced values are seen by the reader
+					for (long i = 0; i < 20000; i++) {
+						writer.put(longBuffer(i), longBuffer(-i));
+					}
+					Assert.assertEquals(0, writer.stats().free);
+					reader.refresh();
+					assertEquals(20000, reader.size());
+					for (long i = 0; i < 20000; i++) {
+						assertEquals(-i, reader.get(longBuffer(i)).getLong());
+					}
+					try {
+						reader.put(longBuffer(-1), longBuffer(-1));
+						Assert.fail();
+					} catch (UnsupportedOperationException e) {
+						// read only
+					}
+					// prefixes the writer does not count are counted each time
+					assertEquals(0, new StringMap(reader, "names").size());
+					assertEquals(20000, reader.count(ByteBuffer.allocate(0)));
+				}
+				// space freed while the reader was open is reused once it is gone
+				writer.put(longBuffer(0), longBuffer(0));
+				Assert.assertTrue(writer.stats().free > 0);
+			}
+			Assert.assertFalse(new File(f.getPath() + ".lock").exists());
+		} finally {
+			f.delete();
+		}
+	}
+
+	/** space freed while a reader is open is not reused by the next writer */
+	@Test
+	public void readerAcrossReopen() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		try {
+			try (PersistentBufferMap writer = new PersistentBufferMap(f, 10)) {
+				for (long i = 0; i < 100; i++) {
+					writer.put(longBuffer(i), longBuffer(i));
+				}
+			}
+			try (PersistentBufferMap reader = PersistentBufferMap.readOnly(f)) {
+				ByteBuffer old = reader.get(longBuffer(1));
+				long free;
+				try (PersistentBufferMap writer = new PersistentBufferMap(f, -1)) {
+					free = writer.stats().free;
+					for (long i = 0; i < 100; i++) {
+						writer.remove(longBuffer(i));
+					}
+				}
+				try (PersistentBufferMap writer = new PersistentBufferMap(f, -1)) {
+					Assert.assertEquals(free, writer.stats().free);
+					for (long i = 100; i < 200; i++) {
+						writer.put(longBuffer(i), longBuffer(-i));
+					}
+					Map<ByteBuffer, ByteBuffer> scanned = new HashMap<>();
+					Assert.assertTrue(writer.scan((k, v) -> scanned.put(k, v) == null));
+					assertEquals(100, scanned.size());
+					Assert.assertFalse(scanned.containsKey(longBuffer(1)));
+				}
+				assertEquals(1, old.getLong(0));
+			}
+			try (PersistentBufferMap writer = new PersistentBufferMap(f, -1)) {
+				Assert.assertFalse(writer.verify());
+				Assert.assertTrue(writer.stats().free > 0);
+				Assert.assertTrue(writer.verify());
+				assertEquals(100, writer.size());
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void snapshot() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		try (PersistentBufferMap map = new PersistentBufferMap(f, 10)) {
+			Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+			for (long i = 0; i < 1000; i++) {
+				map.put(longBuffer(i), longBuffer(i));
+				expected.put(longBuffer(i), longBuffer(i));
+			}
+			try (PersistentBufferMap.Snapshot snapshot = map.snapshot()) {
+				for (long i = 0; i < 1000; i++) {
+					if (i % 3 == 0) {
+						map.remove(longBuffer(i));
+					} else {
+						map.put(longBuffer(i), longBuffer(-i));
+					}
+					map.put(longBuffer(i + 1000), longBuffer(i));
+				}
+				map.compact(0);
+				Assert.assertEquals(0, map.stats().free);
+				assertEquals(expected, snapshot);
+				assertEquals(expected, new HashMap<>(snapshot));
+				assertEquals(longBuffer(999), snapshot.get(longBuffer(999)));
+				assertNull(snapshot.get(longBuffer(1000)));
+			}
+			// space freed while the snapshot was open is reused once it is closed
+			map.remove(longBuffer(1));
+			Assert.assertTrue(map.stats().free > 0);
+			Assert.assertTrue(map.verify());
+		} finally {
+			f.delete();
+		}
+	}
+
+	/**
+	 * writes made while a snapshot is open, into space freed before it, do
+	 * not change it, and writers of shared maps do not wait for it
+	 */
+	@Test
+	public void snapshotWriters() throws Exception {
+		for (int kind = 0; kind < 4; kind++) {
+			File f = File.createTempFile("test.", ".mapdb");
+			try {
+				if (kind == 3) {
+					new PersistentBufferMap(f, 10, PersistentBufferMap.Engine.CHAINED, KeyHash.SAMPLED).close();
+					try (BBBuffer buf = BBBuffer.create(f)) {
+						buf.putInt(0, 3);
+					}
+				}
+				try (PersistentBufferMap map = kind == 0 ? new PersistentBufferMap(f, 10)
+						: kind == 1 ? new PersistentBufferMap(f, 10, PersistentBufferMap.Engine.ROBIN_HOOD)
+								: kind == 2 ? new ConcurrentPersistentBufferMap(f, 10)
+										: new PersistentBufferMap(f, -1)) {
+					Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+					for (long i = 0; i < 1000; i++) {
+						map.put(longBuffer(i), longBuffer(i));
+						if (i % 2 == 0) {
+							map.remove(longBuffer(i));
+						} else {
+							expected.put(longBuffer(i), longBuffer(i));
+						}
+					}
+					try (PersistentBufferMap.Snapshot snapshot = map.snapshot()) {
+						if (kind != 3) {
+							map.namespace("other").put(longBuffer(1), longBuffer(-1));
+						}
+						for (long i = 0; i < 1000; i++) {
+							if (i % 3 == 0) {
+								map.remove(longBuffer(i));
+							} else {
+								map.put(longBuffer(i), longBuffer(-i));
+							}
+						}
+						assertEquals(500, snapshot.size());
+						assertEquals(expected, new HashMap<>(snapshot));
+						assertEquals(longBuffer(999), snapshot.get(longBuffer(999)));
+						assertNull(snapshot.get(longBuffer(2)));
+						if (kind == 2) {
+							Iterator<Map.Entry<ByteBuffer, ByteBuffer>> it = snapshot.entrySet().iterator();
+							Map<ByteBuffer, ByteBuffer> read = new HashMap<>();
+							for (int i = 0; i < 100; i++) {
+								Map.Entry<ByteBuffer, ByteBuffer> e = it.next();
+								read.put(e.getKey(), e.getValue());
+							}
+							ExecutorService pool = Executors.newFixedThreadPool(4);
+							try {
+								List<Future<?>> writers = new ArrayList<>();
+								for (int t = 0; t < 4; t++) {
+									long base = t;
+									writers.add(pool.submit(() -> {
+										for (long i = base; i < 2000; i += 4) {
+											map.put(longBuffer(i), longBuffer(i * 2));
+										}
+									}));
+								}
+								for (Future<?> w : writers) {
+									// the open iteration holds no locks
+									w.get(10, java.util.concurrent.TimeUnit.SECONDS);
+								}
+							} finally {
+								pool.shutdown();
+							}
+							it.forEachRemaining(e -> read.put(e.getKey(), e.getValue()));
+							assertEquals(expected, read);
+						}
+					}
+					Assert.assertTrue(map.verify());
+				}
+			} finally {
+				f.delete();
+			}
+		}
+	}
+
+	/** records freed while they may still be read are not scanned */
+	@Test
+	public void scanDeferred() throws Exception {
+		for (int concurrent = 0; concurrent < 2; concurrent++) {
+			File f = File.createTempFile("test.", ".mapdb");
+			try (PersistentBufferMap map = concurrent == 0 ? new PersistentBufferMap(f, 10)
+					: new ConcurrentPersistentBufferMap(f, 10)) {
+				map.put(longBuffer(1), longBuffer(1));
+				map.put(longBuffer(2), longBuffer(-2));
+				try (PersistentBufferMap.Snapshot snapshot = map.snapshot()) {
+					map.put(longBuffer(1), longBuffer(10));
+					map.remove(longBuffer(2));
+					Map<ByteBuffer, ByteBuffer> scanned = new HashMap<>();
+					Assert.assertTrue(map.scan((k, v) -> scanned.put(k, v) == null));
+					assertEquals(Collections.singletonMap(longBuffer(1), longBuffer(10)), scanned);
+					Assert.assertFalse(map.containsValue(longBuffer(-2)));
+					Assert.assertTrue(map.verify());
+					// the records scan() passes over are still the snapshot's
+					assertEquals(longBuffer(-2), snapshot.get(longBuffer(2)));
+					assertEquals(longBuffer(1), snapshot.get(longBuffer(1)));
+				}
+				try (PersistentBufferMap reader = PersistentBufferMap.readOnly(f)) {
+					map.put(longBuffer(1), longBuffer(100));
+					Map<ByteBuffer, ByteBuffer> scanned = new HashMap<>();
+					Assert.assertTrue(reader.scan((k, v) -> scanned.put(k, v) == null));
+					assertEquals(Collections.singletonMap(longBuffer(1), longBuffer(100)), scanned);
+				}
+			} finally {
+				f.delete();
+			}
+		}
+		// left unfreed by a process that stopped with a snapshot open
+		MemoryStorage storage = new MemoryStorage();
+		PersistentBufferMap stopped = new PersistentBufferMap(storage, 10);
+		stopped.put(longBuffer(1), longBuffer(1));
+		stopped.snapshot();
+		stopped.put(longBuffer(1), longBuffer(2));
+		try (PersistentBufferMap map = new PersistentBufferMap(storage, -1)) {
+			Map<ByteBuffer, ByteBuffer> scanned = new HashMap<>();
+			Assert.assertTrue(map.scan((k, v) -> scanned.put(k, v) == null));
+			assertEquals(Collections.singletonMap(longBuffer(1), longBuffer(2)), scanned);
+			Assert.assertEquals(0, map.stats().free);
+			Assert.assertFalse(map.verify());
+			Assert.assertTrue(map.stats().free > 0);
+			Assert.assertTrue(map.verify());
+		}
+	}
+
+	@Test
+	public void namespaces() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		try {
+			try (PersistentBufferMap map = new PersistentBufferMap(f, 100)) {
+				for (long i = 0; i < 1000; i++) {
+					map.put(longBuffer(i), longBuffer(i));
+				}
+				PersistentBufferMap a = map.namespace("a");
+				for (long i = 0; i < 100; i++) {
+					a.put(longBuffer(i), longBuffer(-i));
+				}
+				map.namespace("b").put(longBuffer(0), longBuffer(1));
+				// entries of a map named before namespaces are moved to one
+				map.put(new MagicBroker<>("c", BBBroker.stringBroker).toBB("key"), BBBroker.stringBroker.toBB("value"));
+				StringMap c = new StringMap(map, "c");
+				Assert.assertNull(c.get("key"));
+				Assert.assertEquals(1001, map.size());
+				Assert.assertEquals(1, BufferMapAdapter.migrate(map, "c"));
+				Assert.assertEquals(0, BufferMapAdapter.migrate(map, "c"));
+				assertEquals("value", c.get("key"));
+				Assert.assertEquals(1000, map.size());
+				Assert.assertEquals(100, a.size());
+				Assert.assertEquals(1, c.size());
+				Assert.assertTrue(map.stats().dead >= 0);
+			}
+			try (PersistentBufferMap map = new PersistentBufferMap(f, -1)) {
+				assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), map.namespaces());
+				PersistentBufferMap a = map.namespace("a");
+				Assert.assertEquals(100, a.size());
+				Assert.assertEquals(100, a.keySet().size());
+				assertEquals(-99, a.get(longBuffer(99)).getLong());
+				assertEquals(1, map.namespace("b").get(longBuffer(0)).getLong());
+				assertEquals(0, map.get(longBuffer(0)).getLong());
+				// in file order, past the records of the other maps
+				Map<ByteBuffer, ByteBuffer> scanned = new HashMap<>();
+				Assert.assertTrue(map.scan((k, v) -> scanned.put(k, v) == null));
+				assertEquals(new HashMap<>(map), scanned);
+				scanned.clear();
+				Assert.assertTrue(a.scan((k, v) -> scanned.put(k, v) == null));
+				assertEquals(new HashMap<>(a), scanned);
+				Assert.assertTrue(map.verify());
+				Assert.assertTrue(a.verify());
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void views() throws Exception {
+		for (PersistentBufferMap.Engine engine : PersistentBufferMap.Engine.values()) {
+			File f = File.createTempFile("test.", ".mapdb");
+			try (BufferMapAdapter<Long, Long> map = new BufferMapAdapter<>(new PersistentBufferMap(f, 10, engine),
+					null, BBBroker.longBroker, BBBroker.longBroker)) {
+				for (long i = 0; i < 2000; i++) {
+					map.put(i, i % 10);
+				}
+				// values are not merged
+				assertEquals(2000, map.values().size());
+				assertEquals(2000, map.values().stream().count());
+				Assert.assertTrue(map.values().stream().anyMatch(v -> v == 9));
+				Assert.assertTrue(map.entrySet().contains(new AbstractMap.SimpleEntry<>(15L, 5L)));
+				Assert.assertFalse(map.entrySet().contains(new AbstractMap.SimpleEntry<>(15L, 6L)));
+
+				// removing while iterating skips nothing
+				Assert.assertTrue(map.keySet().removeIf(k -> k % 2 == 0));
+				assertEquals(1000, map.size());
+				Assert.assertTrue(map.values().removeIf(v -> v == 1));
+				assertEquals(800, map.size());
+				Assert.assertTrue(map.entrySet().removeIf(e -> e.getKey() < 1000));
+				assertEquals(400, map.keySet().stream().count());
+				Assert.assertTrue(map.keySet().stream().allMatch(k -> k >= 1000 && k % 2 == 1 && k % 10 != 1));
+				Assert.assertTrue(map.keySet().remove(1003L));
+				Assert.assertFalse(map.containsKey(1003L));
+
+				// remove() after hasNext() has read ahead
+				Set<Long> before = new HashSet<>(map.keySet());
+				List<Long> seen = new ArrayList<>();
+				for (Iterator<Long> i = map.keySet().iterator(); i.hasNext();) {
+					long k = i.next();
+					seen.add(k);
+					if (k % 3 == 0) {
+						i.hasNext();
+						i.remove();
+					}
+				}
+				assertEquals(before.size(), seen.size());
+				assertEquals(before, new HashSet<>(seen));
+				Assert.assertTrue(map.keySet().stream().noneMatch(k -> k % 3 == 0));
+				assertEquals(before.stream().filter(k -> k % 3 != 0).count(), map.size());
+				map.keySet().clear();
+				Assert.assertTrue(map.isEmpty());
+			} finally {
+				f.delete();
+			}
+		}
+		// over a map that is not a PersistentBufferMap
+		StringMap map = new StringMap(new HashMap<>(), "named");
+		map.put("a", "x");
+		map.put("b", "x");
+		assertEquals(2, map.size());
+		assertEquals(Arrays.asList("x", "x"), new ArrayList<>(map.values()));
+		map.values().removeIf(v -> v.equals("x"));
+		Assert.assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void codecPut() throws Exception {
+		for (PersistentBufferMap.Engine engine : PersistentBufferMap.Engine.values()) {
+			File f = File.createTempFile("test.", ".mapdb");
+			try (PersistentBufferMap map = new PersistentBufferMap(f, 10, engine)) {
+				for (long i = 0; i < 1000; i++) {
+					map.put(longBuffer(i), "value" + i, BBBroker.stringBroker);
+				}
+				// replacing frees the old records
+				for (long i = 0; i < 1000; i++) {
+					map.put(longBuffer(i), "again" + i, BBBroker.stringBroker);
+				}
+				assertEquals(1000, map.size());
+				for (long i = 0; i < 1000; i++) {
+					assertEquals("again" + i, BBBroker.stringBroker.decode(map.get(longBuffer(i))));
+				}
+				Assert.assertTrue(map.verify());
+			} finally {
+				f.delete();
+			}
+		}
+		File f = File.createTempFile("test.", ".mapdb");
+		try (BufferMapAdapter<Long, String> map = new BufferMapAdapter<>(new ConcurrentPersistentBufferMap(f, 10),
+				"codec", BBBroker.longBroker, BBBroker.stringBroker)) {
+			map.set(1L, "one");
+			map.putAll(Collections.singletonMap(2L, "two"));
+			assertEquals("one", map.put(1L, "uno"));
+			assertEquals("uno", map.get(1L));
+			assertEquals("two", map.get(2L));
+		} finally {
+			f.delete();
+		}
+	}
+
+	/** version 1 files have a fixed index, and are still readable */
+	@Test
+	public void version1() throws Exception {
+		File f = File.createTempFile("test.", ".mapdb");
+		try {
+			try (BBBuffer buf = BBBuffer.create(f)) {
+				buf.putInt(1);
+				buf.putInt(3);
+				for (int i = 0; i < 3; i++) {
+					buf.putLong(-1);
+				}
+			}
+			try (PersistentBufferMap map = new PersistentBufferMap(f, -1)) {
+				for (long i = 0; i < 100; i++) {
+					map.put(longBuffer(i), longBuffer(-i));
+				}
+				Assert.assertEquals(3, map.buckets());
+			}
+			PersistentBufferMap.update(f);
+			try (PersistentBufferMap map = new PersistentBufferMap(f, -1)) {
+				Assert.assertEquals(100, map.size());
+				Assert.assertTrue(map.buckets() >= 100);
+				for (long i = 0; i < 100; i++) {
+					assertEquals(-i, map.get(longBuffer(i)).getLong());
+				}
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	/**
+	 * version 2 and 3 files, written as an empty map of that version would
+	 * be, still grow and reopen, and update() converts them
+	 */
+	@Test
+	public void version2and3() throws Exception {
+		for (int version = 2; version <= 3; version++) {
+			File f = File.createTempFile("test.", ".mapdb");
+			try {
+				new PersistentBufferMap(f, 16, PersistentBufferMap.Engine.CHAINED, KeyHash.SAMPLED).close();
+				try (BBBuffer buf = BBBuffer.create(f)) {
+					buf.putInt(0, version);
+				}
+				try (PersistentBufferMap map = new PersistentBufferMap(f, -1)) {
+					for (long i = 0; i < 1000; i++) {
+						map.put(longBuffer(i), longBuffer(-i));
+					}
+					for (long i = 0; i < 1000; i += 10) {
+						map.remove(longBuffer(i));
+					}
+					Assert.assertTrue(map.buckets() > 16);
+					Assert.assertFalse(map.hasNamespaces());
+				}
+				try (PersistentBufferMap map = new PersistentBufferMap(f, -1)) {
+					assertEquals(KeyHash.SAMPLED, map.keyHash());
+					assertEquals(900, map.size());
+					for (long i = 1; i < 1000; i++) {
+						assertEquals(i % 10 == 0 ? null : longBuffer(-i), map.get(longBuffer(i)));
+					}
+					Assert.assertTrue(map.verify());
+				}
+				PersistentBufferMap.update(f);
+				try (PersistentBufferMap map = new PersistentBufferMap(f, -1)) {
+					assertEquals(KeyHash.DEFAULT, map.keyHash());
+					Assert.assertTrue(map.hasNamespaces());
+					assertEquals(900, map.size());
+					for (long i = 1; i < 1000; i++) {
+						assertEquals(i % 10 == 0 ? null : longBuffer(-i), map.get(longBuffer(i)));
+					}
+					Assert.assertTrue(map.verify());
+				}
+			} finally {
+				f.delete();
+			}
+		}
+	}
+
+	/** records hold the hash of their key, which lookups and splits use */
+	@Test
+	public void storedHash() throws Exception {
+		MemoryStorage storage = new MemoryStorage();
+		try (PersistentBufferMap map = new PersistentBufferMap(storage, 1)) {
+			ByteBuffer key = longBuffer(-1);
+			map.put(key, longBuffer(-7));
+			long record = map.pointer(map.link(key));
+			int hash = storage.getInt(record + Long.BYTES);
+			assertEquals(KeyHash.DEFAULT.hash31(key), hash);
+			// a record with another hash is passed over without looking at its key
+			storage.putInt(record + Long.BYTES, hash ^ 1);
+			assertNull(map.get(key));
+			storage.putInt(record + Long.BYTES, hash);
+			assertEquals(-7, map.get(key).getLong());
+			// splits move records by the hash they hold, not by their key
+			storage.putInt(record + Long.BYTES, hash ^ 1);
+			for (long i = 0; i < 100; i++) {
+				map.put(longBuffer(i), longBuffer(i));
+			}
+			Assert.assertTrue(map.buckets() > 1);
+			assertNull(map.get(key));
+			assertEquals(101, map.size());
+			Assert.assertTrue(map.containsValue(longBuffer(-7)));
+		}
+	}
+
 	@Test
 	public void gsonObjects() throws Exception {
 		File f = File.createTempFile("test.", ".mapdb");
@@ -93,6 +1236,15 @@ public class PersistentBufferMapTest {
 				assertEquals(44, map.get("Joe").age);
 				assertEquals("Joseph", map.get("Joe").name);
 			}
+			try (GsonMap<String, Person> map = new GsonMap<>(new PersistentBufferMap(f, -1), "utf8",
+					String.class, Person.class, true)) {
+				map.put("Joe", new Person("J\u00f6seph", 45));
+			}
+			try (GsonMap<String, Person> map = new GsonMap<>(new PersistentBufferMap(f, -1), "utf8",
+					String.class, Person.class, true)) {
+				assertEquals(45, map.get("Joe").age);
+				assertEquals("J\u00f6seph", map.get("Joe").name);
+			}
 		} finally {
 			f.delete();
 		}
@@ -158,7 +1310,7 @@ public class PersistentBufferMapTest {
 				List<String> keys = Arrays.asList("one", "two", "three", "four");
 				List<String> values = Arrays.asList("red", "blue", "green", "mellon");
 				assertEquals(new HashSet<>(keys), map.keySet());
-				assertEquals(new HashSet<>(values), map.values());
+				assertEquals(new HashSet<>(values), new HashSet<>(map.values()));
 
 				// verify hashcode and equals
 				HashMap<String, String> m = new HashMap<>();
@@ -0,0 +1,260 @@
+package net.soliddesign.map;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Open addressed index of a PersistentBufferMap with Robin Hood displacement.
+ * Each slot is one long holding the key's hash and the record's offset, so a
+ * probe compares hashes within the table and only reads the data region for
+ * the record whose hash matches. An entry never sits further from its home
+ * slot than the entries it passed, so a miss stops as soon as it reaches an
+ * entry closer to home than itself.
+ *
+ * <pre>
+ * header: table capacity
+ * slot:   0 hash(31) offset/8(32), or -1 if empty
+ * </pre>
+ *
+ * The capacity is a power of two, at least a cache line of slots, and the
+ * table starts on a cache line. Records must lie in the first 32G of the file.
+ */
+class RobinHoodIndex {
+	static final int LINE = 64;
+
+	/** smallest table. One cache line. */
+	static final long MIN_CAPACITY = LINE / Long.BYTES;
+
+	/** grow when more than this fraction of slots are used */
+	static final double MAX_LOAD = 0.8;
+
+	/** bytes of header used */
+	static final int HEADER_BYTES = 2 * Long.BYTES;
+
+	/** @return capacity needed for entries */
+	static long capacity(long entries) {
+		long c = MIN_CAPACITY;
+		while (c * MAX_LOAD < entries) {
+			c <<= 1;
+		}
+		return c;
+	}
+
+	private static int hash(long slot) {
+		return (int) (slot >>> 32);
+	}
+
+	private static long record(long slot) {
+		return (slot & 0xFFFFFFFFL) << 3;
+	}
+
+	private static long slot(int hash, long record) {
+		if (record >>> 35 != 0) {
+			throw new IllegalStateException("Record beyond reach of index:" + record);
+		}
+		return (long) hash << 32 | record >>> 3;
+	}
+
+	final private PersistentBufferMap map;
+
+	final private Storage buf;
+
+	/** offset of table and capacity in the file header */
+	final private long header;
+
+	private long table;
+
+	private long mask;
+
+	/** open an existing table */
+	RobinHoodIndex(PersistentBufferMap map, Storage buf, long header) {
+		this.map = map;
+		this.buf = buf;
+		this.header = header;
+		reload();
+	}
+
+	/** read table and capacity again, which a writer in another process may have moved */
+	void reload() {
+		table = buf.getLong(header);
+		mask = buf.getLong(header + Long.BYTES) - 1;
+	}
+
+	/** create an empty table of capacity slots at table */
+	RobinHoodIndex(PersistentBufferMap map, Storage buf, long header, long table, long capacity) {
+		this.map = map;
+		this.buf = buf;
+		this.header = header;
+		this.table = table;
+		this.mask = capacity - 1;
+		clear();
+		buf.putLong(header, table);
+		buf.putLong(header + Long.BYTES, capacity);
+	}
+
+	/** add an entry for a key that is known not to be in the table */
+	void add(int hash, long record) {
+		refresh();
+		insert(slot(hash, record));
+	}
+
+	long capacity() {
+		refresh();
+		return mask + 1;
+	}
+
+	/** empty every slot */
+	void clear() {
+		for (long i = 0; i <= mask; i++) {
+			buf.putLong(at(i), -1);
+		}
+	}
+
+	/** @return slots between i and the home slot of the entry there */
+	private long distance(long slot, long i) {
+		return (i - (hash(slot) & mask)) & mask;
+	}
+
+	/** @return slots between i and the home slot of its entry, or -1 if empty */
+	long distance(long i) {
+		long slot = buf.getLong(at(i));
+		return slot < 0 ? -1 : distance(slot, i);
+	}
+
+	/** @return offset of the record for key, or -1 if not found */
+	long find(int hash, ByteBuffer key) {
+		refresh();
+		long i = index(hash, key);
+		return i < 0 ? -1 : record(buf.getLong(at(i)));
+	}
+
+	/** @return record in slot i, or -1 if it is empty */
+	long get(long i) {
+		long slot = buf.getLong(at(i));
+		return slot < 0 ? -1 : record(slot);
+	}
+
+	/**
+	 * Copy every entry into an empty table of twice the capacity at
+	 * newTable.
+	 *
+	 * @return offset of the old table
+	 */
+	long grow(long newTable) {
+		refresh();
+		long oldTable = table;
+		long oldCapacity = mask + 1;
+		table = newTable;
+		mask = (oldCapacity << 1) - 1;
+		clear();
+		for (long i = 0; i < oldCapacity; i++) {
+			long slot = buf.getLong(oldTable + Long.BYTES * i);
+			if (slot >= 0) {
+				insert(slot);
+			}
+		}
+		buf.putLong(header + Long.BYTES, mask + 1);
+		buf.putLong(header, table);
+		return oldTable;
+	}
+
+	/** @return slot index of key, or -1 if not found */
+	private long index(int hash, ByteBuffer key) {
+		long i = hash & mask;
+		for (long d = 0;; d++, i = (i + 1) & mask) {
+			long slot = buf.getLong(at(i));
+			if (slot < 0 || distance(slot, i) < d) {
+				return -1;
+			}
+			if (hash(slot) == hash && map.key(record(slot)).equals(key)) {
+				return i;
+			}
+		}
+	}
+
+	/** place slot, displacing entries that are closer to home */
+	private void insert(long slot) {
+		long i = hash(slot) & mask;
+		for (long d = 0;; d++, i = (i + 1) & mask) {
+			long current = buf.getLong(at(i));
+			if (current < 0) {
+				buf.putLong(at(i), slot);
+				return;
+			}
+			long cd = distance(current, i);
+			if (cd < d) {
+				buf.putLong(at(i), slot);
+				slot = current;
+				d = cd;
+			}
+		}
+	}
+
+	/** @return true if entries would fill too much of the table */
+	boolean overloaded(long entries) {
+		return entries > capacity() * MAX_LOAD;
+	}
+
+	/**
+	 * Point key at record.
+	 *
+	 * @return the record key pointed to before, or -1 if it is new
+	 */
+	long put(int hash, ByteBuffer key, long record) {
+		refresh();
+		long i = index(hash, key);
+		if (i >= 0) {
+			long old = record(buf.getLong(at(i)));
+			buf.putLong(at(i), slot(hash, record));
+			return old;
+		}
+		insert(slot(hash, record));
+		return -1;
+	}
+
+	/** pick up a table grown by another instance sharing the file */
+	private void refresh() {
+		long t = buf.getLong(header);
+		if (t != table) {
+			mask = buf.getLong(header + Long.BYTES) - 1;
+			table = t;
+		}
+	}
+
+	/** move the record in slot i to record */
+	void relocate(long i, long record) {
+		buf.putLong(at(i), slot(hash(buf.getLong(at(i))), record));
+	}
+
+	/**
+	 * Remove key, shifting the entries after it back towards home.
+	 *
+	 * @return the record key pointed to, or -1 if not found
+	 */
+	long remove(int hash, ByteBuffer key) {
+		refresh();
+		long i = index(hash, key);
+		if (i < 0) {
+			return -1;
+		}
+		long old = record(buf.getLong(at(i)));
+		for (long j = (i + 1) & mask;; i = j, j = (j + 1) & mask) {
+			long next = buf.getLong(at(j));
+			if (next < 0 || distance(next, j) == 0) {
+				break;
+			}
+			buf.putLong(at(i), next);
+		}
+		buf.putLong(at(i), -1);
+		return old;
+	}
+
+	/** @return offset of the table */
+	long table() {
+		refresh();
+		return table;
+	}
+
+	private long at(long i) {
+		return table + Long.BYTES * i;
+	}
+}
@@ -0,0 +1,139 @@
+package net.soliddesign.map;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Bytes addressed by absolute offset that a PersistentBufferMap is kept in.
+ * Implementations must allow reads and writes from any number of threads.
+ *
+ * @see BBBuffer
+ * @see ChannelStorage
+ */
+public interface Storage extends AutoCloseable {
+	/** how far to extend the file when a write passes its end */
+	interface Growth {
+		/** to the next power of two. The default. */
+		Growth POWER_OF_TWO = (length, end) -> (Long.highestOneBit(end) << 1) - 1;
+
+		/** @return growth to the next multiple of chunk bytes */
+		static Growth chunk(long chunk) {
+			return (length, end) -> (end + chunk - 1) / chunk * chunk;
+		}
+
+		/** @return growth by percent of the length, and at least 1M */
+		static Growth percent(int percent) {
+			return (length, end) -> Math.max(end, Math.max(1 << 20, length + length / 100 * percent));
+		}
+
+		/** @return new length of a file of length bytes that must hold end bytes */
+		long length(long length, long end);
+	}
+
+	/**
+	 * Atomically reserve size bytes at the end of data.
+	 *
+	 * @return offset of the reserved bytes
+	 */
+	long allocate(long size);
+
+	@Override
+	default void close() throws IOException {
+		close(-1);
+	}
+
+	/**
+	 * Close, and cut the storage to length if nothing else has it open.
+	 *
+	 * @param length
+	 *            -1 to leave the length as it is
+	 */
+	void close(long length) throws IOException;
+
+	/**
+	 * Write changes from a background thread every millis. The thread is
+	 * stopped by close().
+	 *
+	 * @param millis
+	 *            0 to stop flushing
+	 */
+	void flushEvery(long millis);
+
+	/** Write every change. Returns once they are on disk. */
+	void force();
+
+	/** @return the length prefixed buffer at offset */
+	ByteBuffer getBuffer(long offset);
+
+	int getInt(long offset);
+
+	long getLong(long offset);
+
+	/** Set how the storage is extended. Ignored by storage that is not. */
+	default void growth(Growth growth) {
+	}
+
+	/**
+	 * @return true if readers elsewhere may be following pointers into the
+	 *         storage, so that space freed must not be reused yet
+	 */
+	default boolean hasReaders() {
+		return false;
+	}
+
+	/** @return true if writes are refused */
+	default boolean isReadOnly() {
+		return false;
+	}
+
+	/** @return true if something else in this process has the storage open */
+	default boolean isShared() {
+		return false;
+	}
+
+	/** @return length of data */
+	long length();
+
+	/**
+	 * Set the length of data. Used when reopening storage whose data length
+	 * is not otherwise known.
+	 */
+	void length(long length);
+
+	/**
+	 * Shorten data to length if it is still expect, that is if nothing was allocated meanwhile.
+	 *
+	 * @return true if the length was changed
+	 */
+	boolean length(long expect, long length);
+
+	/**
+	 * Write a length prefixed copy of b's remaining bytes at offset. b is not
+	 * modified.
+	 *
+	 * @return number of bytes written
+	 */
+	int putBuffer(long offset, ByteBuffer b);
+
+	/**
+	 * Write a length prefixed buffer of size bytes at offset, filled by
+	 * encoder from its position. Storage that can hands encoder the bytes in
+	 * place, rather than a buffer to copy.
+	 *
+	 * @return number of bytes written
+	 */
+	default int putEncoded(long offset, int size, Consumer<ByteBuffer> encoder) {
+		ByteBuffer b = ByteBuffer.allocate(size);
+		encoder.accept(b);
+		return putBuffer(offset, (ByteBuffer) b.clear());
+	}
+
+	void putInt(long offset, int value);
+
+	void putLong(long offset, long value);
+
+	/** Release memory held for the storage when it is closed, if it holds any. */
+	default void unmapOnClose(boolean unmap) {
+	}
+}
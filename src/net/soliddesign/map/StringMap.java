@@ -7,4 +7,9 @@ public class StringMap extends BufferMapAdapter<String, String> {
 	public StringMap(Map<ByteBuffer, ByteBuffer> map, String name) {
 		super(map, name, BBBroker.stringBroker, BBBroker.stringBroker);
 	}
+
+	/** @param broker of keys and values, such as BBBroker.utf8Broker */
+	public StringMap(Map<ByteBuffer, ByteBuffer> map, String name, BBCodec<String> broker) {
+		super(map, name, broker, broker);
+	}
 }
\ No newline at end of file
@@ -0,0 +1,179 @@
+package net.soliddesign.map;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Strings as UTF-8, written straight into the target buffer. ASCII takes a
+ * byte a char, half of what stringBroker uses.
+ *
+ * The plain form is length prefixed, and encodes as String.getBytes(UTF_8)
+ * does. The ordered form has no length. Each char is encoded on its own, so
+ * that a surrogate takes three bytes, NUL is written as 0 1, and the string
+ * ends with 0 0. Compared as unsigned bytes, ordered forms sort as
+ * String.compareTo() sorts their strings, and a string sorts before any that
+ * it starts. ByteBuffer.compareTo() compares signed bytes, so it does not.
+ *
+ * @see BBBroker#utf8Broker
+ * @see BBBroker#orderedUtf8Broker
+ */
+public class Utf8Broker extends BBCodec.Broker<String> {
+	final private boolean ordered;
+
+	Utf8Broker(boolean ordered) {
+		this.ordered = ordered;
+	}
+
+	@Override
+	public String decode(ByteBuffer bb) {
+		int start;
+		int end;
+		if (ordered) {
+			start = bb.position();
+			end = start;
+			while (true) {
+				if (end + 1 >= bb.limit()) {
+					return null;
+				}
+				if (bb.get(end) == 0) {
+					if (bb.get(end + 1) == 0) {
+						break;
+					}
+					end++;
+				}
+				end++;
+			}
+			bb.position(end + 2);
+		} else {
+			if (bb.remaining() < Integer.BYTES) {
+				return null;
+			}
+			int len = bb.getInt();
+			start = bb.position();
+			end = start + len;
+			if (len < 0 || end > bb.limit()) {
+				return null;
+			}
+			bb.position(end);
+		}
+		// never more chars than bytes
+		char[] chars = new char[end - start];
+		int n = 0;
+		ByteBuffer src = (ByteBuffer) bb.duplicate().limit(end).position(start);
+		while (src.hasRemaining()) {
+			byte b = src.get();
+			if (b > 0) {
+				chars[n++] = (char) b;
+			} else if (b == 0 && ordered) {
+				// skip the 1 after it
+				src.get();
+				chars[n++] = 0;
+			} else {
+				n += Character.toChars(codePoint(b, src), chars, n);
+			}
+		}
+		return new String(chars, 0, n);
+	}
+
+	/**
+	 * @param b
+	 *            first byte of a UTF-8 sequence, the rest of which src holds
+	 * @return the code point, or U+FFFD if the sequence is not one
+	 */
+	static int codePoint(byte b, ByteBuffer src) {
+		int more;
+		int c;
+		if (b >= 0) {
+			return b;
+		} else if ((b & 0xE0) == 0xC0) {
+			more = 1;
+			c = b & 0x1F;
+		} else if ((b & 0xF0) == 0xE0) {
+			more = 2;
+			c = b & 0x0F;
+		} else if ((b & 0xF8) == 0xF0) {
+			more = 3;
+			c = b & 0x07;
+		} else {
+			return '\uFFFD';
+		}
+		for (; more > 0 && src.hasRemaining() && (src.get(src.position()) & 0xC0) == 0x80; more--) {
+			c = c << 6 | src.get() & 0x3F;
+		}
+		return more > 0 || c > Character.MAX_CODE_POINT ? '\uFFFD' : c;
+	}
+
+	/** write the UTF-8 sequence of c, a code point or a lone surrogate */
+	static void encode(int c, ByteBuffer bb) {
+		if (c < 0x80) {
+			bb.put((byte) c);
+		} else if (c < 0x800) {
+			bb.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+		} else if (c < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+			bb.put((byte) (0xE0 | c >> 12))
+					.put((byte) (0x80 | c >> 6 & 0x3F))
+					.put((byte) (0x80 | c & 0x3F));
+		} else {
+			bb.put((byte) (0xF0 | c >> 18))
+					.put((byte) (0x80 | c >> 12 & 0x3F))
+					.put((byte) (0x80 | c >> 6 & 0x3F))
+					.put((byte) (0x80 | c & 0x3F));
+		}
+	}
+
+	@Override
+	public int encodedSize(String s) {
+		int size = ordered ? 2 : Integer.BYTES;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				size += c == 0 && ordered ? 2 : 1;
+			} else if (c < 0x800) {
+				size += 2;
+			} else if (ordered || !Character.isSurrogate(c)) {
+				size += 3;
+			} else if (pair(s, i)) {
+				size += 4;
+				i++;
+			} else {
+				// replaced by '?'
+				size++;
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public void encodeInto(String s, ByteBuffer bb) {
+		if (ordered) {
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (c == 0) {
+					bb.put((byte) 0).put((byte) 1);
+				} else {
+					encode(c, bb);
+				}
+			}
+			bb.put((byte) 0).put((byte) 0);
+			return;
+		}
+		int at = bb.position();
+		bb.putInt(0);
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (!Character.isSurrogate(c)) {
+				encode(c, bb);
+			} else if (pair(s, i)) {
+				encode(Character.toCodePoint(c, s.charAt(++i)), bb);
+			} else {
+				bb.put((byte) '?');
+			}
+		}
+		bb.putInt(at, bb.position() - at - Integer.BYTES);
+	}
+
+	/** @return true if the char at i of s starts a surrogate pair */
+	private static boolean pair(String s, int i) {
+		return Character.isHighSurrogate(s.charAt(i)) && i + 1 < s.length()
+				&& Character.isLowSurrogate(s.charAt(i + 1));
+	}
+}
@@ -0,0 +1,91 @@
+package net.soliddesign.map;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Puts and removes that commit() applies to a PersistentBufferMap together.
+ * None of them are visible in the map before commit(). With the map's
+ * default Durability.COMMIT, once commit() returns they are on disk, and a map
+ * opened after a crash holds either all of a committed batch or none of it.
+ *
+ * Threads that commit at the same time share the work. One of them forces
+ * the file once for all of their batches.
+ */
+public class WriteBatch {
+	final private PersistentBufferMap map;
+
+	/** new value of each key, or null to remove it */
+	final private Map<ByteBuffer, ByteBuffer> changes = new LinkedHashMap<>();
+
+	/** record written for each key, or -1 to remove it. Filled by commit(). */
+	final Map<ByteBuffer, Long> staged = new LinkedHashMap<>();
+
+	/** true once committed. Guarded by the map's commit lock. */
+	private boolean done;
+
+	/** why the commit failed, or null */
+	private RuntimeException failure;
+
+	WriteBatch(PersistentBufferMap map) {
+		this.map = map;
+	}
+
+	private static ByteBuffer copy(ByteBuffer b) {
+		return (ByteBuffer) ByteBuffer.allocate(b.remaining()).put(b.duplicate()).flip();
+	}
+
+	/** @return changes to commit, in the order they were made */
+	Map<ByteBuffer, ByteBuffer> changes() {
+		return changes;
+	}
+
+	/**
+	 * Apply every change to the map and, with Durability.COMMIT, force them
+	 * to disk.
+	 *
+	 * @throws IllegalStateException
+	 *             if the batch was already committed, or the commit failed
+	 */
+	public void commit() {
+		if (!staged.isEmpty() || done) {
+			throw new IllegalStateException("Batch already committed");
+		}
+		map.commit(this);
+	}
+
+	/** @throws IllegalStateException if the commit failed */
+	void check() {
+		if (failure != null) {
+			throw new IllegalStateException("Commit failed", failure);
+		}
+	}
+
+	void done(RuntimeException failure) {
+		this.failure = failure;
+		done = true;
+	}
+
+	/** @return true once committed by this or another thread */
+	boolean isDone() {
+		return done;
+	}
+
+	/** Put a copy of key and value when committed. Later changes to key replace this one. */
+	public WriteBatch put(ByteBuffer key, ByteBuffer value) {
+		changes.put(copy(key), copy(value));
+		return this;
+	}
+
+	/** Remove key when committed. Later changes to key replace this one. */
+	public WriteBatch remove(ByteBuffer key) {
+		changes.put(copy(key), null);
+		return this;
+	}
+
+	/** @return number of keys changed */
+	public int size() {
+		return changes.size();
+	}
+}